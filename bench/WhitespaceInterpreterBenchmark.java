@@ -0,0 +1,351 @@
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput of WhitespaceInterpreter over a fixed corpus of generated programs.
+ *
+ * Each workload knows how many source instructions one run executes, and adds
+ * that to the "sourceInstructions" counter, so the secondary result is source
+ * instructions per second.  The count is derived from the program text, not
+ * from the engine, so it stays comparable across decoding and fusion changes.
+ * It is not what a Profiler or an instruction limit counts: those see the
+ * instructions left after fusion, 2,000,002 rather than 2,600,002 for
+ * ARITHMETIC and 505,647 rather than 583,704 for SIEVE.  For PARSE it is the
+ * number of instructions loaded.
+ *
+ * Every workload fits in an int, so the UNBOUNDED runs measure what the
+ * overflow checks cost on the long path.
+ *
+ * interpret parses each run, as execute() does; runCompiled reuses one
+ * Program and its generated class, and only differs from the interpreter for
+ * INT, since UNBOUNDED runs fall back to it.  executeLazily decodes as it
+ * runs.  loadStream measures loading alone, through the single-pass stream
+ * loader, and is most meaningful for PARSE.
+ *
+ * There is no build file; with the JMH 1.37 jars (jmh-core,
+ * jmh-generator-annprocess, jopt-simple, commons-math3) in $JMH, from the
+ * repository root:
+ *
+ *   javac -cp "$JMH/*" -processor org.openjdk.jmh.generators.BenchmarkProcessor \
+ *       -d target/bench src/WhitespaceInterpreter.java bench/WhitespaceInterpreterBenchmark.java
+ *   java -cp "target/bench:$JMH/*" WhitespaceInterpreterBenchmark
+ *
+ * main() adds the GC profiler; gc.alloc.rate.norm is the allocation per
+ * program run.  To pick benchmarks or parameters, run org.openjdk.jmh.Main
+ * on the same class path instead, e.g. with -p workload=SIEVE runCompiled.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WhitespaceInterpreterBenchmark {
+
+	@Param({ "ARITHMETIC", "SIEVE", "RECURSION", "IO", "PARSE" })
+	public String workload;
+
+	@Param({ "INT", "UNBOUNDED" })
+	public String numericMode;
+
+	private Workload program;
+	private WhitespaceInterpreter.ExecutionOptions options;
+	private WhitespaceInterpreter.Program compiled;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long sourceInstructions;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			sourceInstructions = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		program = Workload.valueOf(workload);
+		options = WhitespaceInterpreter.ExecutionOptions.DEFAULT
+				.withNumericMode(WhitespaceInterpreter.NumericMode.valueOf(numericMode));
+		compiled = WhitespaceInterpreter.compile(program.source);
+	}
+
+	@Benchmark
+	public String interpret(Counters counters) {
+		final String output = WhitespaceInterpreter.execute(program.source, program.input(), null, options);
+		counters.sourceInstructions += program.sourceInstructions;
+		return output;
+	}
+
+	@Benchmark
+	public String runCompiled(Counters counters) {
+		final String output = compiled.runCompiled(program.input(), null, options);
+		counters.sourceInstructions += program.sourceInstructions;
+		return output;
+	}
+
+	@Benchmark
+	public String executeLazily(Counters counters) {
+		final String output = WhitespaceInterpreter.executeLazily(program.source, program.input(), null, options);
+		counters.sourceInstructions += program.sourceInstructions;
+		return output;
+	}
+
+	@Benchmark
+	public WhitespaceInterpreter.Program loadStream(Counters counters) {
+		final WhitespaceInterpreter.Program loaded = WhitespaceInterpreter.compile(new ByteArrayInputStream(program.sourceBytes));
+		counters.sourceInstructions += program.sourceInstructions;
+		return loaded;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(WhitespaceInterpreterBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+
+	enum Workload {
+		ARITHMETIC(arithmetic(200_000), 13L * 200_000 + 2, null),
+		SIEVE(sieve(20_000), sieveInstructions(20_000), null),
+		RECURSION(recursion(50_000), 8L * 50_000 + 7, null),
+		IO(io(20_000), 15L * 20_000 + 5, ioInput(20_000)),
+		PARSE(parse(100_000), 1 + 4L * 100_000, null);
+
+		final String source;
+		final byte[] sourceBytes;
+		final long sourceInstructions;
+		final byte[] input;
+
+		Workload(String source, long sourceInstructions, byte[] input) {
+			this.source = source;
+			this.sourceBytes = source.getBytes(StandardCharsets.UTF_8);
+			this.sourceInstructions = sourceInstructions;
+			this.input = input;
+		}
+
+		ByteArrayInputStream input() {
+			return input != null ? new ByteArrayInputStream(input) : null;
+		}
+	}
+
+	// counts down from n, doing a little mixed arithmetic on each pass
+	static String arithmetic(int n) {
+		return new Source()
+				.push(n)
+				.label(1).dup().push(3).op("\t  \n").push(7).op("\t   ").push(5).op("\t \t\t").discard()
+				.push(1).op("\t  \t")
+				.dup().jumpZero(2)
+				.jump(1)
+				.label(2).discard().end()
+				.toString();
+	}
+
+	// sieve of Eratosthenes over heap cells [2, limit), printing the prime count
+	static String sieve(int limit) {
+		return new Source()
+				.push(2)
+				.label(1).dup().dup().op("\t  \n").push(limit).op("\t  \t").jumpNegative(2)
+				.jump(7)
+				.label(2).dup().op("\t\t\t").jumpZero(3)
+				.jump(6)
+				.label(3).dup().dup().op("\t  \n")
+				.label(4).dup().push(limit).op("\t  \t").jumpNegative(5)
+				.discard().jump(6)
+				.label(5).dup().push(1).op("\t\t ")
+				.copy(1).op("\t   ")
+				.jump(4)
+				.label(6).push(1).op("\t   ").jump(1)
+				.label(7).discard().push(0).push(2)
+				.label(8).dup().push(limit).op("\t  \t").jumpNegative(9)
+				.discard().op("\t\n \t").end()
+				.label(9).dup().op("\t\t\t").jumpZero(10)
+				.jump(11)
+				.label(10).op(" \n\t").push(1).op("\t   ").op(" \n\t")
+				.label(11).push(1).op("\t   ").jump(8)
+				.toString();
+	}
+
+	// mirrors sieve() block by block to count the instructions it executes
+	static long sieveInstructions(int limit) {
+		final boolean[] composite = new boolean[limit];
+		long count = 1;
+		int i = 2;
+		while (true) {
+			count += 6;
+			if ((long)i * i >= limit) {
+				count += 1;
+				break;
+			}
+			count += 3;
+			if (composite[i]) {
+				count += 1;
+			} else {
+				count += 3;
+				for (int j = i * i; ; j += i) {
+					count += 4;
+					if (j >= limit) {
+						count += 2;
+						break;
+					}
+					composite[j] = true;
+					count += 6;
+				}
+			}
+			count += 3;
+			i++;
+		}
+		count += 3;
+		for (int k = 2; ; k++) {
+			count += 4;
+			if (k >= limit) {
+				count += 3;
+				break;
+			}
+			count += 3;
+			count += composite[k] ? 1 : 4;
+			count += 3;
+		}
+		return count;
+	}
+
+	// recursive sum of 1..depth, one call frame per step
+	static String recursion(int depth) {
+		return new Source()
+				.push(depth).call(1).op("\t\n \t").end()
+				.label(1).dup().jumpZero(2)
+				.dup().push(1).op("\t  \t").call(1)
+				.op("\t   ").ret()
+				.label(2).ret()
+				.toString();
+	}
+
+	// reads "number\nchar" pairs and echoes them back
+	static String io(int count) {
+		return new Source()
+				.push(count)
+				.label(1).dup().jumpZero(2)
+				.push(0).op("\t\n\t\t").push(0).op("\t\t\t").op("\t\n \t")
+				.push(1).op("\t\n\t ").push(1).op("\t\t\t").op("\t\n  ")
+				.push(1).op("\t  \t").jump(1)
+				.label(2).discard().end()
+				.toString();
+	}
+
+	static byte[] ioInput(int count) {
+		final StringBuilder input = new StringBuilder();
+		for (int line = 0; line < count; line++) {
+			input.append(line * 37).append('\n').append((char)('a' + line % 26));
+		}
+		return input.toString().getBytes();
+	}
+
+	// a large, commented program that ends immediately: loading dominates
+	static String parse(int blocks) {
+		final Source source = new Source().end();
+		for (int block = 0; block < blocks; block++) {
+			source.comment("block" + block).label(block + 1).push(block).dup().op("\t   ").jumpZero(block + 1);
+		}
+		return source.toString();
+	}
+
+	// tiny assembler so the corpus stays readable
+	static class Source {
+		private final StringBuilder code = new StringBuilder();
+
+		Source op(String instruction) {
+			code.append(instruction);
+			return this;
+		}
+
+		Source push(int value) {
+			return op("  ").number(value);
+		}
+
+		Source copy(int index) {
+			return op(" \t ").number(index);
+		}
+
+		Source dup() {
+			return op(" \n ");
+		}
+
+		Source discard() {
+			return op(" \n\n");
+		}
+
+		Source label(int label) {
+			return op("\n  ").labelName(label);
+		}
+
+		Source call(int label) {
+			return op("\n \t").labelName(label);
+		}
+
+		Source jump(int label) {
+			return op("\n \n").labelName(label);
+		}
+
+		Source jumpZero(int label) {
+			return op("\n\t ").labelName(label);
+		}
+
+		Source jumpNegative(int label) {
+			return op("\n\t\t").labelName(label);
+		}
+
+		Source ret() {
+			return op("\n\t\n");
+		}
+
+		Source end() {
+			return op("\n\n\n");
+		}
+
+		Source comment(String text) {
+			return op(text);
+		}
+
+		private Source number(int value) {
+			code.append(value < 0 ? '\t' : ' ');
+			return bits(Integer.toBinaryString(Math.abs(value)));
+		}
+
+		private Source labelName(int label) {
+			return bits(Integer.toBinaryString(label));
+		}
+
+		private Source bits(String binary) {
+			for (char bit : binary.toCharArray()) {
+				code.append(bit == '1' ? '\t' : ' ');
+			}
+			code.append('\n');
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			return code.toString();
+		}
+	}
+}
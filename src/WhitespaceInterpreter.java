@@ -1,6 +1,31 @@
 import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WhitespaceInterpreter {
 
@@ -31,509 +56,5996 @@ public class WhitespaceInterpreter {
 	}
 	
 	public static String execute(String code, InputStream input, OutputStream output) {
+		return execute(code, input, output, FlushPolicy.DEFAULT);
+	}
+
+	/**
+	 * Output is encoded into a reusable buffer and only written to the stream
+	 * when the buffer fills or one of the given flush policies triggers.
+	 * Whatever is buffered is always written out when the program stops,
+	 * cleanly or not.
+	 */
+	public static String execute(String code, InputStream input, OutputStream output, Set<FlushPolicy> flushPolicies) {
+		return compile(code).run(input, output, flushPolicies);
+	}
+
+	public static String execute(String code, InputStream input, OutputStream output, ExecutionOptions options) {
+		return compile(code).run(input, output, options);
+	}
+
+	public static ExecutionResult executeStreaming(String code, InputStream input, OutputStream output) {
+		return executeStreaming(code, input, output, FlushPolicy.DEFAULT);
+	}
+
+	/**
+	 * Runs the program writing only to the given stream; the output is never
+	 * kept in memory.  Failures while running are reported in the result
+	 * rather than thrown, after whatever was printed has been written out.
+	 * Problems loading the program still throw.
+	 */
+	public static ExecutionResult executeStreaming(String code, InputStream input, OutputStream output,
+			Set<FlushPolicy> flushPolicies) {
+		return compile(code).runStreaming(input, output, flushPolicies);
+	}
+
+	public static ExecutionResult executeStreaming(String code, InputStream input, OutputStream output,
+			ExecutionOptions options) {
+		return compile(code).runStreaming(input, output, options);
+	}
+
+	public static String executeCompiled(String code, InputStream input) {
+		return executeCompiled(code, input, null);
+	}
+
+	/**
+	 * Same contract as execute(), but the program is first translated into a
+	 * JVM class so that HotSpot can compile it like ordinary Java.  Programs
+	 * too large to fit a single method fall back to the interpreter.  Every
+	 * call generates the class afresh; to run a program repeatedly, keep the
+	 * Program (or get it from a ProgramCache) and call runCompiled on it.
+	 */
+	public static String executeCompiled(String code, InputStream input, OutputStream output) {
+		return compile(code).runCompiled(input, output, ExecutionOptions.DEFAULT);
+	}
+
+	/**
+	 * Parses, decodes and optimizes the source once.  The resulting Program
+	 * can be run any number of times, from any number of threads.
+	 */
+	public static Program compile(String code) {
+		if (code == null || code.isEmpty()) {
+			throw new IllegalStateException("Code is null");
+		}
+		return new Program(new StringSource(code, ProgramCache.hash(code)));
+	}
+
+	/**
+	 * Loads a program straight from a stream, filtering and decoding it in a
+	 * single pass; the source text is never held in memory.  The stream must
+	 * be in an ASCII-compatible encoding such as UTF-8, and is not closed.
+	 */
+	public static Program compile(InputStream source) {
+		return compileSource(new ByteSource(source));
+	}
+
+	// as compile(InputStream), for sources that are already characters
+	public static Program compile(Reader source) {
+		return compileSource(new ReaderSource(source));
+	}
+
+	/**
+	 * Loads a program from a file by mapping it rather than reading it onto
+	 * the heap.  The file must be in an ASCII-compatible encoding such as UTF-8.
+	 */
+	public static Program compile(Path source) {
+		try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+			return compileSource(new ByteSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+		} catch (IOException ex) {
+			throw new IllegalStateException("Error reading program source", ex);
+		}
+	}
+
+	/**
+	 * Runs a program while it is still being loaded: instructions are decoded
+	 * only as execution reaches them, so the first output does not wait for
+	 * the rest of a large source.  In exchange the program is neither stack
+	 * checked nor searched for loop idioms, and errors in the source, such as
+	 * a duplicated or undefined label, only fail the run once execution gets
+	 * to them.  Nothing is cached; use compile() for programs run repeatedly.
+	 */
+	public static String executeLazily(String code, InputStream input, OutputStream output, ExecutionOptions options) {
+		if (code == null || code.isEmpty()) {
+			throw new IllegalStateException("Code is null");
+		}
+		return executeLazily(new StringSource(code, null), input, output, options);
+	}
+
+	// as executeLazily(String, ...), reading the source from a stream as it is needed
+	public static String executeLazily(InputStream source, InputStream input, OutputStream output,
+			ExecutionOptions options) {
+		return executeLazily(new ByteSource(source), input, output, options);
+	}
+
+	public static String executeLazily(Path source, InputStream input, OutputStream output, ExecutionOptions options) {
+		try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+			return executeLazily(new ByteSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())),
+					input, output, options);
+		} catch (IOException ex) {
+			throw new IllegalStateException("Error reading program source", ex);
+		}
+	}
+
+	private static String executeLazily(CodeSource source, InputStream input, OutputStream output,
+			ExecutionOptions options) {
+		if (source.isCompleted() && source.isEmpty()) {
+			throw new IllegalStateException("Code is null");
+		}
+		return new Program(new LazyLoader(source)).run(input, output, options);
+	}
+
+	private static Program compileSource(CodeSource source) {
+		final Program program = new Program(source);
+		if (source.isEmpty()) {
+			throw new IllegalStateException("Code is null");
+		}
+		return program;
+	}
+
+	private static void preflush(OutputStream output) {
 		// preflush buffer
 		if (output != null) {
 			try {
-				output.flush();
-			} catch (IOException ex) {
-				throw new IllegalStateException("Error preflushing output stream");
+				output.flush();
+			} catch (IOException ex) {
+				throw new IllegalStateException("Error preflushing output stream");
+			}
+		}
+	}
+
+	// position is how many characters of input an earlier run already read
+	private static InputSource openInput(InputSource input, Code code, long position) {
+		if (input != null && position > 0) {
+			input.skip(position);
+		}
+		if (code.getGuard() != null) {
+			code.getGuard().track(input, position);
+		}
+		return input;
+	}
+	
+	private static String execute(Code code, Machine machine, InputSource input, OutputSink output) {
+		try {
+			run(code, machine, input, output);
+		} catch (RuntimeException ex) {
+			output.terminate(ex);
+			throw ex;
+		}
+		output.terminate();
+		return output.toString();
+	}
+
+	private static void run(Code code, Machine machine, InputSource input, OutputSink output) {
+		try {
+			if (machine.getNumericMode() == NumericMode.UNBOUNDED) {
+				runUnbounded(code, machine, input, output);
+				return;
+			}
+			// a lazily loaded program stops at the end of what is loaded, and goes on once more is
+			while (!runLoaded(code, machine, input, output)) {
+				if (!code.load(code.ip)) {
+					throw new IllegalStateException("Unclean termination");
+				}
+			}
+		} catch (RuntimeException ex) {
+			if (code.getTracer() != null) {
+				ex.addSuppressed(code.getTracer().dump(code));
+			}
+			throw ex;
+		}
+	}
+
+	/**
+	 * The int engine: one switch over the flattened program, with the
+	 * instruction pointer, both stacks and their sizes held in locals.  They
+	 * are written back to the Code and Machine however the loop exits, so a
+	 * failed run can still be inspected.  Exceptions match what the original
+	 * IntStack-based dispatch threw, operand for operand.  Returns false when
+	 * it runs off the end of the instructions loaded so far.
+	 */
+	private static boolean runLoaded(Code code, Machine machine, InputSource input, OutputSink output) {
+		final int[] opCodes = code.getOpCodes();
+		final int[] operands = code.getOperands();
+		final IntStack operandStack = machine.getStack();
+		final IntStack returnStack = code.getReturnStack();
+		final Heap heap = machine.getHeap();
+		final Profiler profiler = code.getProfiler();
+		final Tracer tracer = code.getTracer();
+		final Memoizer memoizer = code.getMemoizer();
+		final long[] targetHits = code.getTargetHits();
+		final Guard guard = code.getGuard();
+		final boolean observed = guard != null || targetHits != null;
+		final boolean pauseAtInput = code.pauseAtInput;
+		final int loaded = code.getLoaded();
+
+		int[] stack = operandStack.values;
+		int sp = operandStack.size;
+		int[] calls = returnStack.values;
+		int csp = returnStack.size;
+		int ip = code.ip;
+		long count = machine.instructionCount;
+		try {
+			while (ip < loaded) {
+				final int opCode = opCodes[ip];
+				final int operand = operands[ip];
+				++ip;
+				++count;
+				if (profiler != null) {
+					profiler.record(code.getInstruction(ip - 1).getOpCode(), sp);
+				}
+				if (tracer != null) {
+					tracer.record(ip - 1, sp, sp > 0 ? stack[sp - 1] : 0, null);
+				}
+				switch (opCode) {
+				case Op.PUSH:
+					if (sp == stack.length) {
+						stack = Arrays.copyOf(stack, sp << 1);
+					}
+					stack[sp++] = operand;
+					break;
+				case Op.DUPLICATE_NTH:
+					if (operand < 0 || operand >= sp) {
+						throw new IllegalStateException("Stack index " + operand + " is out of range");
+					}
+					if (sp == stack.length) {
+						stack = Arrays.copyOf(stack, sp << 1);
+					}
+					stack[sp] = stack[sp - 1 - operand];
+					++sp;
+					break;
+				case Op.SLIDE: {
+					if (sp < 1) {
+						throw underflow();
+					}
+					final int top = stack[--sp];
+					sp = operand < 0 || operand >= sp ? 0 : sp - operand;
+					stack[sp++] = top;
+					break;
+				}
+				case Op.DUPLICATE:
+					if (sp < 1) {
+						throw underflow();
+					}
+					if (sp == stack.length) {
+						stack = Arrays.copyOf(stack, sp << 1);
+					}
+					stack[sp] = stack[sp - 1];
+					++sp;
+					break;
+				case Op.DISCARD:
+					if (sp < 1) {
+						throw underflow();
+					}
+					--sp;
+					break;
+				case Op.SWAP: {
+					if (sp < 2) {
+						throw underflow();
+					}
+					final int top = stack[sp - 1];
+					stack[sp - 1] = stack[sp - 2];
+					stack[sp - 2] = top;
+					break;
+				}
+				case Op.ADD:
+					if (sp < 2) {
+						throw underflow();
+					}
+					--sp;
+					stack[sp - 1] += stack[sp];
+					break;
+				case Op.SUBTRACT:
+					if (sp < 2) {
+						throw underflow();
+					}
+					--sp;
+					stack[sp - 1] -= stack[sp];
+					break;
+				case Op.MULTIPLY:
+					if (sp < 2) {
+						throw underflow();
+					}
+					--sp;
+					stack[sp - 1] *= stack[sp];
+					break;
+				case Op.DIVIDE:
+					if (sp < 2) {
+						throw underflow();
+					}
+					if (stack[sp - 1] == 0) {		// floating point divide by 0.0 doesn't fail!
+						throw new ArithmeticException("Divide by zero");
+					}
+					--sp;
+					stack[sp - 1] = Math.floorDiv(stack[sp - 1], stack[sp]);
+					break;
+				case Op.MODULO:
+					if (sp < 2) {
+						throw underflow();
+					}
+					if (stack[sp - 1] == 0) {
+						throw new ArithmeticException("Divide by zero");
+					}
+					--sp;
+					stack[sp - 1] = Math.floorMod(stack[sp - 1], stack[sp]);
+					break;
+				case Op.ADD_IMMEDIATE:
+					if (sp < 1) {
+						throw underflow();
+					}
+					stack[sp - 1] += operand;
+					break;
+				case Op.STORE:
+					if (sp < 2) {
+						throw underflow();
+					}
+					sp -= 2;
+					heap.store(stack[sp], stack[sp + 1]);
+					break;
+				case Op.RETRIEVE:
+					if (sp < 1) {
+						throw underflow();
+					}
+					stack[sp - 1] = heap.retrieve(stack[sp - 1]);
+					break;
+				case Op.STORE_AT:
+					if (sp < 1) {
+						throw underflow();
+					}
+					heap.store(operand, stack[--sp]);
+					break;
+				case Op.RETRIEVE_AT:
+					if (sp == stack.length) {
+						stack = Arrays.copyOf(stack, sp << 1);
+					}
+					stack[sp++] = heap.retrieve(operand);
+					break;
+				case Op.OUTPUT_CHAR:
+					if (sp < 1) {
+						throw underflow();
+					}
+					output.writeChar(stack[--sp]);
+					break;
+				case Op.OUTPUT_NUMBER:
+					if (sp < 1) {
+						throw underflow();
+					}
+					output.writeNumber(stack[--sp]);
+					break;
+				case Op.READ_CHAR:
+					if (pauseAtInput) {
+						--ip;
+						--count;
+						code.paused = true;
+						return true;
+					}
+					output.beforeInput();
+					if (sp < 1) {
+						throw underflow();
+					}
+					heap.store(stack[--sp], input.read());
+					break;
+				case Op.READ_NUMBER:
+					if (pauseAtInput) {
+						--ip;
+						--count;
+						code.paused = true;
+						return true;
+					}
+					output.beforeInput();
+					if (sp < 1) {
+						throw underflow();
+					}
+					heap.store(stack[--sp], input.readNumber());
+					break;
+				case Op.CALL:
+					if (memoizer != null) {
+						final int arguments = memoizer.getArguments(operand);
+						if (arguments >= 0 && arguments <= sp) {
+							final SubroutineCache.Result cached = memoizer.call(operand, arguments, stack, sp, csp + 1, count);
+							if (cached != null) {
+								sp -= arguments;
+								if (sp + cached.values.length > stack.length) {
+									stack = Arrays.copyOf(stack, Math.max(sp + cached.values.length, stack.length << 1));
+								}
+								System.arraycopy(cached.values, 0, stack, sp, cached.values.length);
+								sp += cached.values.length;
+								count += cached.instructions - 1;
+								break;
+							}
+						}
+					}
+					if (csp == calls.length) {
+						calls = Arrays.copyOf(calls, csp << 1);
+					}
+					calls[csp++] = ip;
+					if (targetHits != null) {
+						++targetHits[operand];
+					}
+					ip = operand;
+					if (guard != null) {
+						guard.checkCall(csp, count, sp);
+					}
+					break;
+				case Op.RETURN:
+					if (csp < 1) {
+						throw underflow();
+					}
+					ip = calls[--csp];
+					if (memoizer != null && memoizer.isPending(csp)) {
+						memoizer.returned(stack, sp, count);
+					}
+					break;
+				case Op.JUMP: {
+					final int from = ip;
+					ip = operand;
+					if (observed) {
+						observeJump(guard, targetHits, from, ip, count, sp);
+					}
+					break;
+				}
+				case Op.JUMP_ZERO:
+					if (sp < 1) {
+						throw underflow();
+					}
+					if (stack[--sp] == 0) {
+						final int from = ip;
+						ip = operand;
+						if (observed) {
+							observeJump(guard, targetHits, from, ip, count, sp);
+						}
+					}
+					break;
+				case Op.DUPLICATE_JUMP_ZERO:
+					if (sp < 1) {
+						throw underflow();
+					}
+					if (stack[sp - 1] == 0) {
+						final int from = ip;
+						ip = operand;
+						if (observed) {
+							observeJump(guard, targetHits, from, ip, count, sp);
+						}
+					}
+					break;
+				case Op.JUMP_NEGATIVE:
+					if (sp < 1) {
+						throw underflow();
+					}
+					if (stack[--sp] < 0) {
+						final int from = ip;
+						ip = operand;
+						if (observed) {
+							observeJump(guard, targetHits, from, ip, count, sp);
+						}
+					}
+					break;
+				case Op.PRINT_STRING: {
+					// counts as the instructions the loop would have run, even when it fails
+					if (sp < 1) {
+						throw underflow();
+					}
+					int address = stack[sp - 1];
+					int character;
+					while ((character = heap.retrieve(address)) != 0) {
+						count += 3;
+						output.writeChar(character);
+						stack[sp - 1] = ++address;
+						count += 3;
+					}
+					count += 2;
+					if (sp == stack.length) {
+						stack = Arrays.copyOf(stack, sp << 1);
+					}
+					stack[sp++] = 0;
+					ip = operands[ip + 1];
+					break;
+				}
+				case Op.FILL:
+				case Op.COPY: {
+					if (sp < 1) {
+						throw underflow();
+					}
+					final int head = ip - 1;
+					final int index = stack[sp - 1];
+					final long iterations = -(index + operands[head + 1]) & 0xFFFFFFFFL;
+					final int target = operands[head + 4];
+					final int source = opCode == Op.COPY ? operands[head + 6] : 0;
+					if (iterations <= Integer.MAX_VALUE && index + iterations <= Integer.MAX_VALUE
+							&& fits(index, target, iterations) && fits(index, source, iterations)) {
+						if (opCode == Op.FILL) {
+							heap.fill(index + target, (int)iterations, operands[head + 5]);
+						} else {
+							heap.copy(index + source, index + target, (int)iterations);
+						}
+						stack[sp - 1] = index + (int)iterations;
+						count += iterations * (opCode == Op.FILL ? 9 : 11) + 2;
+						ip = operands[head + 2];
+						break;
+					}
+					// the loop would wrap around: run it as written, from its dup
+					if (sp == stack.length) {
+						stack = Arrays.copyOf(stack, sp << 1);
+					}
+					stack[sp] = stack[sp - 1];
+					++sp;
+					break;
+				}
+				case Op.END:
+					return true;
+				default:		// INVALID and PUSH_WIDE
+					throw new IllegalStateException(code.getInstruction(ip - 1).getMessage());
+				}
+			}			
+			return false;
+		} finally {
+			operandStack.values = stack;
+			operandStack.size = sp;
+			returnStack.values = calls;
+			returnStack.size = csp;
+			code.ip = ip;
+			machine.instructionCount = count;
+		}
+	}
+
+	// after the jump, so that a limit stops the run in a state it can resume from
+	private static void observeJump(Guard guard, long[] targetHits, int from, int target, long count, int sp) {
+		if (guard != null && target < from) {
+			guard.check(count, sp);
+		}
+		if (targetHits != null) {
+			++targetHits[target];
+		}
+	}
+
+	// whether offset + index stays in int range for every index of the loop
+	private static boolean fits(int index, int offset, long iterations) {
+		final long first = (long)index + offset;
+		return first >= Integer.MIN_VALUE && first + iterations - 1 <= Integer.MAX_VALUE;
+	}
+
+	private static IllegalStateException underflow() {
+		return new IllegalStateException("Stack underflow");
+	}
+	
+	/**
+	 * Dispatch loop for NumericMode.UNBOUNDED.  Every operation takes the long
+	 * path while its operands fit, and only falls back to BigInteger when one
+	 * of them already is one or the result overflows.  Failures match the
+	 * int engine's, apart from wrapping, which cannot happen here.
+	 */
+	private static void runUnbounded(Code code, Machine machine, InputSource input, OutputSink output) {
+		final WideStack stack = machine.getWideStack();
+		final WideHeap heap = machine.getWideHeap();
+		final Profiler profiler = code.getProfiler();
+		final Tracer tracer = code.getTracer();
+
+		while (!code.isCompleted()) {
+			final Instruction instruction = code.nextInstruction();
+			machine.countInstruction();
+			if (profiler != null) {
+				profiler.record(instruction.getOpCode(), stack.size());
+			}
+			if (tracer != null) {
+				final int depth = stack.size();
+				tracer.record(code.ip - 1, depth, depth > 0 ? stack.peekLong() : 0, depth > 0 ? stack.peekBig() : null);
+			}
+			switch (instruction.getOpCode()) {
+			case PUSH:
+				stack.push(instruction.getOperand());
+				break;
+			case PUSH_WIDE:
+				stack.push(instruction.getConstant());
+				break;
+			case DUPLICATE_NTH:
+				stack.copy(instruction.getOperand());
+				break;
+			case SLIDE:
+				stack.slide(instruction.getOperand());
+				break;
+			case DUPLICATE:
+				stack.require(1);
+				stack.copy(0);
+				break;
+			case DISCARD:
+				stack.discard();
+				break;
+			case SWAP:
+				stack.swap();
+				break;
+			case ADD:
+			case SUBTRACT:
+			case MULTIPLY:
+			case DIVIDE:
+			case MODULO:
+				stack.require(2);
+				if (stack.isLong(1) && stack.isLong(2)) {
+					final long right = stack.popLong();
+					final long left = stack.popLong();
+					arithmetic(instruction.getOpCode(), left, right, stack);
+				} else {
+					final BigInteger right = stack.popBig();
+					final BigInteger left = stack.popBig();
+					stack.push(arithmetic(instruction.getOpCode(), left, right));
+				}
+				break;
+			case ADD_IMMEDIATE:
+				stack.require(1);
+				if (stack.isLong(1)) {
+					arithmetic(OpCode.ADD, stack.popLong(), instruction.getOperand(), stack);
+				} else {
+					stack.push(stack.popBig().add(BigInteger.valueOf(instruction.getOperand())));
+				}
+				break;
+			case STORE:
+				heap.store(stack);
+				break;
+			case RETRIEVE:
+				heap.retrieve(stack);
+				break;
+			case STORE_AT:
+				heap.storeAt(instruction.getOperand(), stack);
+				break;
+			case RETRIEVE_AT:
+				heap.retrieveAt(instruction.getOperand(), stack);
+				break;
+			case OUTPUT_CHAR:
+				stack.require(1);
+				if (stack.isLong(1)) {
+					final long codePoint = stack.popLong();
+					if (codePoint != (int)codePoint) {
+						throw new IllegalArgumentException(String.format("Not a valid Unicode code point: 0x%X", codePoint));
+					}
+					output.writeChar((int)codePoint);
+				} else {
+					throw new IllegalArgumentException(String.format("Not a valid Unicode code point: 0x%X", stack.popBig()));
+				}
+				break;
+			case OUTPUT_NUMBER:
+				stack.require(1);
+				if (stack.isLong(1)) {
+					output.writeNumber(stack.popLong());
+				} else {
+					output.writeNumber(stack.popBig());
+				}
+				break;
+			case READ_CHAR:
+				if (code.pauseAtInput) {
+					code.pause();
+					--machine.instructionCount;
+					return;
+				}
+				output.beforeInput();
+				stack.require(1);
+				heap.storeInput(stack, input.read());
+				break;
+			case READ_NUMBER:
+				if (code.pauseAtInput) {
+					code.pause();
+					--machine.instructionCount;
+					return;
+				}
+				output.beforeInput();
+				stack.require(1);
+				heap.storeInput(stack, input.readWideNumber());
+				break;
+			case CALL:
+				code.callSub(instruction.getTarget());
+				break;
+			case JUMP:
+				code.jump(instruction.getTarget());
+				break;
+			case JUMP_ZERO:
+				if (stack.popSign() == 0) {
+					code.jump(instruction.getTarget());
+				}
+				break;
+			case DUPLICATE_JUMP_ZERO:
+				if (stack.peekSign() == 0) {
+					code.jump(instruction.getTarget());
+				}
+				break;
+			case JUMP_NEGATIVE:
+				if (stack.popSign() < 0) {
+					code.jump(instruction.getTarget());
+				}
+				break;
+			case RETURN:
+				code.returnFromSub();
+				break;
+			case END:
+				return;
+			default:
+				throw new IllegalStateException(instruction.getMessage());
+			}
+		}
+		throw new IllegalStateException("Unclean termination");
+	}
+
+	private static void arithmetic(OpCode opCode, long left, long right, WideStack stack) {
+		switch (opCode) {
+		case ADD: {
+			final long result = left + right;
+			if (((left ^ result) & (right ^ result)) < 0) {
+				stack.push(BigInteger.valueOf(left).add(BigInteger.valueOf(right)));
+			} else {
+				stack.push(result);
+			}
+			break;
+		}
+		case SUBTRACT: {
+			final long result = left - right;
+			if (((left ^ right) & (left ^ result)) < 0) {
+				stack.push(BigInteger.valueOf(left).subtract(BigInteger.valueOf(right)));
+			} else {
+				stack.push(result);
+			}
+			break;
+		}
+		case MULTIPLY: {
+			final long high = Math.multiplyHigh(left, right);
+			final long result = left * right;
+			if ((high == 0 && result >= 0) || (high == -1 && result < 0)) {
+				stack.push(result);
+			} else {
+				stack.push(BigInteger.valueOf(left).multiply(BigInteger.valueOf(right)));
+			}
+			break;
+		}
+		case DIVIDE:
+			if (right == 0) {
+				throw new ArithmeticException("Divide by zero");
+			}
+			if (left == Long.MIN_VALUE && right == -1) {
+				stack.push(BigInteger.valueOf(left).negate());
+			} else {
+				stack.push(Math.floorDiv(left, right));
+			}
+			break;
+		default:
+			if (right == 0) {
+				throw new ArithmeticException("Divide by zero");
+			}
+			stack.push(Math.floorMod(left, right));
+		}
+	}
+
+	// same floored semantics as the long path
+	private static BigInteger arithmetic(OpCode opCode, BigInteger left, BigInteger right) {
+		switch (opCode) {
+		case ADD:
+			return left.add(right);
+		case SUBTRACT:
+			return left.subtract(right);
+		case MULTIPLY:
+			return left.multiply(right);
+		default:
+			if (right.signum() == 0) {
+				throw new ArithmeticException("Divide by zero");
+			}
+			final BigInteger[] quotientAndRemainder = left.divideAndRemainder(right);
+			final boolean adjust = quotientAndRemainder[1].signum() != 0
+					&& quotientAndRemainder[1].signum() != right.signum();
+			if (opCode == OpCode.DIVIDE) {
+				return adjust ? quotientAndRemainder[0].subtract(BigInteger.ONE) : quotientAndRemainder[0];
+			}
+			return adjust ? quotientAndRemainder[1].add(right) : quotientAndRemainder[1];
+		}
+	}
+	
+	// literals are unbounded; the bits are only collected as text past 62 of them
+	private static BigInteger extractNumber(ICode code) {
+		char sign = code.nextOpCode();
+		if (sign == LF) {
+			throw new IllegalStateException("Numbers must start with a sign at minimum");
+		}
+		boolean isNegative = sign == TAB;
+		
+		long magnitude = 0;
+		StringBuilder binary = null;
+		while (true) {
+			char bit = code.nextOpCode();
+			if (bit == LF) {
+				break;
+			}
+			if (binary != null) {
+				binary.append(bit == TAB ? '1' : '0');
+			} else {
+				magnitude = magnitude << 1 | (bit == TAB ? 1 : 0);
+				if (magnitude >= 1L << 62) {
+					binary = new StringBuilder(Long.toBinaryString(magnitude));
+				}
+			}
+		}
+		// A number expression [sign][terminal] will be treated as zero
+		BigInteger number = binary != null ? new BigInteger(binary.toString(), 2) : BigInteger.valueOf(magnitude);
+		return isNegative ? number.negate() : number;
+	}
+
+	// a literal too wide for an int only loads as a push; the int engines fail if they reach it
+	private static Instruction push(BigInteger literal) {
+		if (literal.bitLength() < Integer.SIZE) {
+			return Instruction.withOperand(OpCode.PUSH, literal.intValue());
+		}
+		return Instruction.withConstant(OpCode.PUSH_WIDE, literal,
+				"Number literal " + literal + " does not fit in an int; run with NumericMode.UNBOUNDED");
+	}
+
+	// stack operands out of int range behave like any other out-of-range operand
+	private static int stackOperand(BigInteger literal) {
+		if (literal.bitLength() < Integer.SIZE) {
+			return literal.intValue();
+		}
+		return literal.signum() < 0 ? -1 : Integer.MAX_VALUE;
+	}
+	
+	private static String extractLabel(ICode code) {
+		final StringBuilder label = new StringBuilder();
+		while (true) {
+			char ch = code.nextOpCode();
+			if (ch == LF) {
+				break;
+			}
+			label.append(ch);
+		}
+		return label.toString();
+	}
+	
+	// the radix named by a number's prefix, for the text in [start, end)
+	private static int radixOf(CharSequence number, int start, int end) {
+		final int length = end - start;
+		if (length >= 2 && number.charAt(start) == '0' && number.charAt(start + 1) == 'b') {
+			return 2;
+		} else if (length >= 2 && number.charAt(start) == '0' && number.charAt(start + 1) == 'x') {
+			return 16;
+		} else if (length > 1 && number.charAt(start) == '0') {
+			return 8;
+		}
+		return 10;
+	}
+
+	private static int prefixLength(int radix) {
+		return radix == 10 ? 0 : radix == 8 ? 1 : 2;
+	}
+
+	/**
+	 * A loaded program: decoded, optimized and with every branch resolved.
+	 * Immutable, so one instance can serve concurrent runs; each run gets its
+	 * own stack, heap and call stack.
+	 */
+	public static final class Program {
+		private final Instruction[] instructions;
+		private final int[] opCodes;
+		private final int[] operands;
+		private final int[] idiomOpCodes;
+		private final int[] provenDepths;
+		private final Map<String, Label> labels;
+		private final String sourceHash;
+		private final LazyLoader loader;
+		private SubroutineAnalyzer subroutines;		// found on first use, see SubroutineCache
+		private CompiledProgram compiled;		// generated on first use, see runCompiled
+		private boolean compileAttempted = false;	// compiled stays null for programs too large to compile
+
+		private Program(CodeSource source) {
+			CodeScanner scanner = new CodeScanner(source);
+			final PeepholeOptimizer optimizer = new PeepholeOptimizer(scanner.decode());
+			instructions = optimizer.optimize();
+			provenDepths = new StackVerifier(instructions).verify();
+			// flattened for the int engine: a branch's operand is its target
+			opCodes = new int[instructions.length];
+			operands = new int[instructions.length];
+			for (int index = 0; index < instructions.length; index++) {
+				opCodes[index] = instructions[index].getOpCode().getNumber();
+				operands[index] = instructions[index].isBranch()
+						? instructions[index].getTarget() : instructions[index].getOperand();
+			}
+			idiomOpCodes = new IdiomRecognizer(instructions).recognize(opCodes);
+			final Map<String, Label> remapped = new HashMap<>();
+			for (Label label : scanner.extractLabels().values()) {
+				remapped.put(label.getLabel(), new Label(label.getLabel(), optimizer.remap(label.getIp())));
+			}
+			labels = Collections.unmodifiableMap(remapped);
+			this.sourceHash = source.hash();
+			this.loader = null;
+		}
+
+		// a program that loads itself as its runs reach further, see LazyLoader
+		private Program(LazyLoader loader) {
+			instructions = null;
+			opCodes = null;
+			operands = null;
+			idiomOpCodes = null;
+			provenDepths = null;
+			labels = null;
+			sourceHash = null;
+			this.loader = loader;
+		}
+
+		public String run(InputStream input, OutputStream output) {
+			return run(input, output, FlushPolicy.DEFAULT);
+		}
+
+		public String run(InputStream input, OutputStream output, Set<FlushPolicy> flushPolicies) {
+			return run(input, output, ExecutionOptions.DEFAULT.withFlushPolicies(flushPolicies));
+		}
+
+		public String run(InputStream input, OutputStream output, ExecutionOptions options) {
+			return run(InputSource.of(input), output, options);
+		}
+
+		// as run(), reading the input by mapping the file
+		public String runFromFile(Path input, OutputStream output, ExecutionOptions options) {
+			return run(InputSource.of(input), output, options);
+		}
+
+		private String run(InputSource input, OutputStream output, ExecutionOptions options) {
+			preflush(output);
+			final Profiler profiler = options.getProfiler();
+			final Machine machine = new Machine(options.getNumericMode());
+			final Code code = new Code(this, profiler, Guard.of(options, machine), Tracer.of(options),
+					options.getSubroutineCache());
+			final OutputSink sink = new OutputSink(output, options.getFlushPolicies(), true);
+			try {
+				return execute(code, machine, openInput(input, code, 0), sink);
+			} finally {
+				if (profiler != null) {
+					profiler.finish(this, code, machine, sink, input);
+				}
+			}
+		}
+
+		/**
+		 * Same contract as run(), but through a JVM class generated from the
+		 * program on its first compiled run and kept for later ones.  Runs the
+		 * class cannot serve fall back to the interpreter: lazy programs,
+		 * programs too large to fit a single method, and options that need the
+		 * machine's state, i.e. profiling, limits, tracing or a numeric mode
+		 * other than INT.  Flush policies are honoured either way.
+		 */
+		public String runCompiled(InputStream input, OutputStream output, ExecutionOptions options) {
+			final CompiledProgram compiled = options.getNumericMode() == NumericMode.INT && options.getProfiler() == null
+					&& !options.isLimited() && options.getTraceSize() == 0 ? getCompiled() : null;
+			if (compiled == null) {
+				return run(input, output, options);
+			}
+			preflush(output);
+			return compiled.run(InputSource.of(input), new OutputSink(output, options.getFlushPolicies(), true));
+		}
+
+		public ExecutionResult runStreaming(InputStream input, OutputStream output) {
+			return runStreaming(input, output, FlushPolicy.DEFAULT);
+		}
+
+		/**
+		 * Runs the program writing only to the given stream; the output is never
+		 * kept in memory.  Failures while running are reported in the result
+		 * rather than thrown, after whatever was printed has been written out.
+		 */
+		public ExecutionResult runStreaming(InputStream input, OutputStream output, Set<FlushPolicy> flushPolicies) {
+			return runStreaming(input, output, ExecutionOptions.DEFAULT.withFlushPolicies(flushPolicies));
+		}
+
+		public ExecutionResult runStreaming(InputStream input, OutputStream output, ExecutionOptions options) {
+			return runStreaming(InputSource.of(input), output, options);
+		}
+
+		public ExecutionResult runStreamingFromFile(Path input, OutputStream output, ExecutionOptions options) {
+			return runStreaming(InputSource.of(input), output, options);
+		}
+
+		private ExecutionResult runStreaming(InputSource input, OutputStream output, ExecutionOptions options) {
+			preflush(output);
+			final Profiler profiler = options.getProfiler();
+			final Machine machine = new Machine(options.getNumericMode());
+			final Code code = new Code(this, profiler, Guard.of(options, machine), Tracer.of(options),
+					options.getSubroutineCache());
+			final OutputSink sink = new OutputSink(output, options.getFlushPolicies(), false);
+			try {
+				try {
+					WhitespaceInterpreter.run(code, machine, openInput(input, code, 0), sink);
+				} catch (RuntimeException ex) {
+					sink.terminate(ex);
+					return ExecutionResult.failed(machine.getInstructionCount(), ex);
+				}
+				sink.terminate();
+				return ExecutionResult.completed(machine.getInstructionCount());
+			} finally {
+				if (profiler != null) {
+					profiler.finish(this, code, machine, sink, input);
+				}
+			}
+		}
+
+		public Snapshot snapshot() {
+			return snapshot(ExecutionOptions.DEFAULT);
+		}
+
+		/**
+		 * Runs the program up to its first input instruction, without a
+		 * profiler, and keeps the state it reached there.  Limits apply as
+		 * they would to a whole run.  A failure before any input is thrown
+		 * from here rather than from each run of the snapshot.
+		 */
+		public Snapshot snapshot(ExecutionOptions options) {
+			final Machine machine = new Machine(options.getNumericMode());
+			final Code code = new Code(this, null, Guard.of(options, machine), Tracer.of(options),
+					options.getSubroutineCache());
+			code.pauseAtInput = true;
+			final OutputSink sink = new OutputSink(null, options.getFlushPolicies(), true);
+			WhitespaceInterpreter.run(code, machine, null, sink);
+			return new Snapshot(this, options, machine, code, !code.paused, sink.toString(), 0);
+		}
+
+		// SHA-256 of the source text, in hex
+		public String getSourceHash() {
+			return loader != null ? loader.getSourceHash() : sourceHash;
+		}
+
+		Instruction[] getInstructions() {
+			return loader != null ? loader.loadAll() : instructions;
+		}
+
+		int[] getOpCodes() {
+			return opCodes;
+		}
+
+		int[] getOperands() {
+			return operands;
+		}
+
+		// opCodes with recognized loops collapsed into single instructions
+		int[] getIdiomOpCodes() {
+			return idiomOpCodes;
+		}
+
+		// lower bound on the stack depth each instruction starts from
+		int[] getProvenDepths() {
+			return provenDepths;
+		}
+
+		Map<String, Label> getLabels() {
+			return loader != null ? loader.getLabels() : labels;
+		}
+
+		// null when the program is lazy or too large to compile
+		synchronized CompiledProgram getCompiled() {
+			if (!compileAttempted && loader == null) {
+				compiled = BytecodeCompiler.compile(instructions, provenDepths);
+				compileAttempted = true;
+			}
+			return compiled;
+		}
+
+		synchronized SubroutineAnalyzer getSubroutines() {
+			if (subroutines == null) {
+				subroutines = new SubroutineAnalyzer(getInstructions());
+			}
+			return subroutines;
+		}
+
+		// null once the program is fully loaded
+		LazyLoader getLoader() {
+			return loader;
+		}
+	}
+
+	/**
+	 * Bounded, least-recently-used cache of compiled programs keyed by the
+	 * SHA-256 of their source.  Programs are compiled outside the lock, so a
+	 * slow compile never blocks lookups of other programs; two threads missing
+	 * on the same source at once may both compile it, and the first one wins.
+	 */
+	public static final class ProgramCache {
+		private final int capacity;
+		private final LinkedHashMap<String, Program> programs;
+		private long hits = 0;
+		private long misses = 0;
+
+		public ProgramCache(int capacity) {
+			if (capacity < 1) {
+				throw new IllegalArgumentException("Cache capacity must be at least 1");
+			}
+			this.capacity = capacity;
+			this.programs = new LinkedHashMap<String, Program>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Program> eldest) {
+					return size() > ProgramCache.this.capacity;
+				}
+			};
+		}
+
+		public Program get(String code) {
+			if (code == null || code.isEmpty()) {
+				throw new IllegalStateException("Code is null");
+			}
+			final String key = hash(code);
+			synchronized (this) {
+				final Program cached = programs.get(key);
+				if (cached != null) {
+					++hits;
+					return cached;
+				}
+				++misses;
+			}
+			final Program program = new Program(new StringSource(code, key));
+			synchronized (this) {
+				final Program raced = programs.putIfAbsent(key, program);
+				return raced != null ? raced : program;
+			}
+		}
+
+		public synchronized long getHits() {
+			return hits;
+		}
+
+		public synchronized long getMisses() {
+			return misses;
+		}
+
+		public synchronized int size() {
+			return programs.size();
+		}
+
+		public synchronized void clear() {
+			programs.clear();
+		}
+
+		static String hash(String code) {
+			final MessageDigest digest = newDigest();
+			digest.update(code.getBytes(StandardCharsets.UTF_8));
+			return hex(digest);
+		}
+
+		static MessageDigest newDigest() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException ex) {
+				throw new IllegalStateException("SHA-256 is not available", ex);
+			}
+		}
+
+		static String hex(MessageDigest digest) {
+			return HexFormat.of().formatHex(digest.digest());
+		}
+	}
+
+	/**
+	 * Bounded, least-recently-used cache of pure subroutine calls, switched on
+	 * by passing one in the ExecutionOptions.  An entry maps the values a call
+	 * took off the stack to the values it left and the instructions it ran,
+	 * so a repeated call costs one lookup and still counts as many
+	 * instructions as it would have run, counted after fusion like every
+	 * instruction count.  Entries are keyed by program as well, so one cache
+	 * can serve any number of programs and runs, from any number of threads.
+	 * Hits and misses add up over all of them.
+	 */
+	public static final class SubroutineCache {
+		private final int capacity;
+		private final LinkedHashMap<Call, Result> calls;
+		private long hits = 0;
+		private long misses = 0;
+
+		public SubroutineCache(int capacity) {
+			if (capacity < 1) {
+				throw new IllegalArgumentException("Cache capacity must be at least 1");
+			}
+			this.capacity = capacity;
+			this.calls = new LinkedHashMap<Call, Result>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Call, Result> eldest) {
+					return size() > SubroutineCache.this.capacity;
+				}
+			};
+		}
+
+		synchronized Result get(Call call) {
+			final Result result = calls.get(call);
+			if (result != null) {
+				++hits;
+			} else {
+				++misses;
+			}
+			return result;
+		}
+
+		synchronized void put(Call call, Result result) {
+			calls.put(call, result);
+		}
+
+		public synchronized long getHits() {
+			return hits;
+		}
+
+		public synchronized long getMisses() {
+			return misses;
+		}
+
+		// hits over lookups, 0 before the first lookup
+		public synchronized double getHitRate() {
+			return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+		}
+
+		public synchronized int size() {
+			return calls.size();
+		}
+
+		public synchronized void clear() {
+			calls.clear();
+		}
+
+		// a call to the subroutine at entry of the program, with the values it takes, top last
+		static final class Call {
+			private final Program program;
+			private final int entry;
+			private final int[] arguments;
+			private final int hash;
+
+			Call(Program program, int entry, int[] arguments) {
+				this.program = program;
+				this.entry = entry;
+				this.arguments = arguments;
+				this.hash = 31 * (31 * System.identityHashCode(program) + entry) + Arrays.hashCode(arguments);
+			}
+
+			@Override
+			public boolean equals(Object other) {
+				if (!(other instanceof Call)) {
+					return false;
+				}
+				final Call call = (Call)other;
+				return program == call.program && entry == call.entry && Arrays.equals(arguments, call.arguments);
+			}
+
+			@Override
+			public int hashCode() {
+				return hash;
+			}
+		}
+
+		// the values a call left, top last, and the instructions it ran, its CALL and RETURN included
+		static final class Result {
+			final int[] values;
+			final long instructions;
+
+			Result(int[] values, long instructions) {
+				this.values = values;
+				this.instructions = instructions;
+			}
+		}
+	}
+
+	/**
+	 * Memoizes the pure subroutine calls of one int-engine run through a
+	 * SubroutineCache.  A call that misses is remembered with the depth of
+	 * the return stack it pushed, and stored when the RETURN that pops that
+	 * depth comes; a call that fails is never stored.
+	 */
+	private static class Memoizer {
+		private final SubroutineCache cache;
+		private final Program program;
+		private final SubroutineAnalyzer subroutines;
+		private SubroutineCache.Call[] calls = new SubroutineCache.Call[16];
+		private int[] depths = new int[16];
+		private long[] counts = new long[16];
+		private int pending = 0;
+
+		public Memoizer(SubroutineCache cache, Program program) {
+			this.cache = cache;
+			this.program = program;
+			this.subroutines = program.getSubroutines();
+		}
+
+		// values the call at entry takes, or -1 when it cannot be memoized
+		public int getArguments(int entry) {
+			return subroutines.getArguments(entry);
+		}
+
+		/**
+		 * Looks up the call to entry with the top arguments values of stack.
+		 * On a miss the call is remembered as pending, to be stored when its
+		 * frame, at return stack depth callDepth, returns.  count is the
+		 * instruction count with the CALL itself included.
+		 */
+		public SubroutineCache.Result call(int entry, int arguments, int[] stack, int sp, int callDepth, long count) {
+			final SubroutineCache.Call call = new SubroutineCache.Call(program, entry, Arrays.copyOfRange(stack, sp - arguments, sp));
+			final SubroutineCache.Result result = cache.get(call);
+			if (result == null) {
+				if (pending == calls.length) {
+					calls = Arrays.copyOf(calls, pending << 1);
+					depths = Arrays.copyOf(depths, pending << 1);
+					counts = Arrays.copyOf(counts, pending << 1);
+				}
+				calls[pending] = call;
+				depths[pending] = callDepth;
+				counts[pending] = count - 1;
+				++pending;
+			}
+			return result;
+		}
+
+		// whether the RETURN that left the return stack at callDepth ends a pending call
+		public boolean isPending(int callDepth) {
+			return pending > 0 && depths[pending - 1] == callDepth + 1;
+		}
+
+		public void returned(int[] stack, int sp, long count) {
+			--pending;
+			final SubroutineCache.Call call = calls[pending];
+			calls[pending] = null;
+			final int results = subroutines.getResults(call.entry);
+			cache.put(call, new SubroutineCache.Result(Arrays.copyOfRange(stack, sp - results, sp), count - counts[pending]));
+		}
+	}
+
+	/**
+	 * Runs many independent executions concurrently.  Every run has its own
+	 * stack, heap and call stack; results come back in submission order, with
+	 * a failing run captured in its result instead of aborting the batch.
+	 * At most maxInFlight runs are queued or running at once; submitting more
+	 * blocks the caller until one finishes.
+	 */
+	public static final class BatchExecutor implements AutoCloseable {
+		private final ExecutorService executor;
+		private final boolean ownsExecutor;
+		private final Semaphore permits;
+
+		// a pool of parallelism daemon threads, shut down by close()
+		public BatchExecutor(int parallelism) {
+			this(newPool(parallelism), parallelism * 2, true);
+		}
+
+		// runs on the caller's executor (a virtual thread executor, for instance), which close() leaves alone
+		public BatchExecutor(ExecutorService executor, int maxInFlight) {
+			this(executor, maxInFlight, false);
+		}
+
+		private BatchExecutor(ExecutorService executor, int maxInFlight, boolean ownsExecutor) {
+			if (maxInFlight < 1) {
+				throw new IllegalArgumentException("At least one run must be allowed in flight");
+			}
+			this.executor = executor;
+			this.ownsExecutor = ownsExecutor;
+			this.permits = new Semaphore(maxInFlight);
+		}
+
+		public List<BatchResult> run(Program program, List<? extends InputStream> inputs) {
+			return run(program, inputs, ExecutionOptions.DEFAULT);
+		}
+
+		// every run gets the options, limits included
+		public List<BatchResult> run(Program program, List<? extends InputStream> inputs, ExecutionOptions options) {
+			return run(Collections.nCopies(inputs.size(), program), inputs, options);
+		}
+
+		public List<BatchResult> run(List<Program> programs, List<? extends InputStream> inputs) {
+			return run(programs, inputs, ExecutionOptions.DEFAULT);
+		}
+
+		// programs.get(i) runs against inputs.get(i); a null input means the program gets none
+		public List<BatchResult> run(List<Program> programs, List<? extends InputStream> inputs, ExecutionOptions options) {
+			if (programs.size() != inputs.size()) {
+				throw new IllegalArgumentException("Expected one input per program");
+			}
+			final List<Future<BatchResult>> futures = new ArrayList<>(programs.size());
+			try {
+				for (int index = 0; index < programs.size(); index++) {
+					permits.acquire();
+					final BatchTask task = new BatchTask(programs.get(index), inputs.get(index), options);
+					futures.add(task);
+					try {
+						executor.execute(task);
+					} catch (RuntimeException ex) {
+						futures.forEach(future -> future.cancel(true));
+						throw ex;
+					}
+				}
+				final List<BatchResult> results = new ArrayList<>(futures.size());
+				for (Future<BatchResult> future : futures) {
+					results.add(future.get());
+				}
+				return results;
+			} catch (InterruptedException ex) {
+				futures.forEach(future -> future.cancel(true));
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while running batch", ex);
+			} catch (ExecutionException ex) {
+				futures.forEach(future -> future.cancel(true));
+				throw new IllegalStateException("Batch run failed", ex.getCause());
+			}
+		}
+
+		@Override
+		public void close() {
+			if (ownsExecutor) {
+				executor.shutdownNow();
+			}
+		}
+
+		/**
+		 * One run of a batch, holding a permit until it is over: when its run
+		 * returns or, if it is cancelled before it starts, when it is
+		 * cancelled.  A cancelled task that already started keeps its permit
+		 * until the run actually stops.  Anything the run throws, errors
+		 * included, becomes a failed result.
+		 */
+		private final class BatchTask extends FutureTask<BatchResult> {
+			private final AtomicBoolean released = new AtomicBoolean();
+			private volatile boolean started = false;
+
+			BatchTask(Program program, InputStream input, ExecutionOptions options) {
+				super(() -> {
+					try {
+						return BatchResult.completed(program.run(input, null, options));
+					} catch (Throwable ex) {
+						return BatchResult.failed(ex);
+					}
+				});
+			}
+
+			@Override
+			public void run() {
+				started = true;
+				try {
+					super.run();
+				} finally {
+					release();
+				}
+			}
+
+			@Override
+			protected void done() {
+				if (!started) {
+					release();
+				}
+			}
+
+			private void release() {
+				if (released.compareAndSet(false, true)) {
+					permits.release();
+				}
+			}
+		}
+
+		private static ExecutorService newPool(int parallelism) {
+			final AtomicInteger threads = new AtomicInteger();
+			return Executors.newFixedThreadPool(parallelism, runnable -> {
+				final Thread thread = new Thread(runnable, "whitespace-batch-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	public static final class BatchResult {
+		private final String output;
+		private final Throwable failure;
+
+		private BatchResult(String output, Throwable failure) {
+			this.output = output;
+			this.failure = failure;
+		}
+
+		static BatchResult completed(String output) {
+			return new BatchResult(output, null);
+		}
+
+		static BatchResult failed(Throwable failure) {
+			return new BatchResult(null, failure);
+		}
+
+		public boolean isSuccess() {
+			return failure == null;
+		}
+
+		// program output, or null when the run failed
+		public String getOutput() {
+			return output;
+		}
+
+		// what the run threw, errors included, or null when it completed
+		public Throwable getFailure() {
+			return failure;
+		}
+	}
+
+	/**
+	 * Outcome of a streaming run: how it ended, how many instructions were
+	 * dispatched, and why it stopped.  Like the instruction limit, the count
+	 * is taken after peephole fusion, so "push 1; add" counts once; it is
+	 * not the number of source instructions.
+	 */
+	public static final class ExecutionResult {
+		public enum Status {
+			COMPLETED, FAILED
+		}
+
+		private final Status status;
+		private final long instructionCount;
+		private final String exitReason;
+		private final RuntimeException failure;
+
+		private ExecutionResult(Status status, long instructionCount, String exitReason, RuntimeException failure) {
+			this.status = status;
+			this.instructionCount = instructionCount;
+			this.exitReason = exitReason;
+			this.failure = failure;
+		}
+
+		static ExecutionResult completed(long instructionCount) {
+			return new ExecutionResult(Status.COMPLETED, instructionCount, "End of program", null);
+		}
+
+		static ExecutionResult failed(long instructionCount, RuntimeException failure) {
+			return new ExecutionResult(Status.FAILED, instructionCount, String.valueOf(failure.getMessage()), failure);
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		public long getInstructionCount() {
+			return instructionCount;
+		}
+
+		public String getExitReason() {
+			return exitReason;
+		}
+
+		// the exception that stopped the program, or null when it completed
+		public RuntimeException getFailure() {
+			return failure;
+		}
+
+		@Override
+		public String toString() {
+			return status + " after " + instructionCount + " instructions: " + exitReason;
+		}
+	}
+
+	/**
+	 * A program stopped just before its first input instruction, or after it
+	 * ended if it never reads.  Every run forks that state: the stacks are
+	 * copied, and the heap shares its pages with the snapshot until the run
+	 * writes to them, so tables built before the first read are neither
+	 * rebuilt nor copied.  Output printed before the snapshot is replayed at
+	 * the start of each run.  Runs are independent of each other and may
+	 * happen concurrently, and use the options the snapshot was taken with;
+	 * their profiler only sees what each run executes after the snapshot.
+	 *
+	 * A run stopped by a limit or cancellation also leaves a snapshot, see
+	 * ExecutionLimitException.getSnapshot().  That one remembers how many
+	 * characters of input were read, and runs from it expect the same input
+	 * from its start and skip those.  Any snapshot can be written out as a
+	 * checkpoint and read back, in this JVM or another, against the same
+	 * program.
+	 */
+	public static final class Snapshot {
+		private static final int CHECKPOINT_MAGIC = 0x57534350;		// "WSCP"
+
+		private final Program program;
+		private final ExecutionOptions options;
+		private final Machine machine;
+		private final int ip;
+		private final IntStack returnStack;
+		private final boolean completed;
+		private final String output;
+		private final long inputPosition;
+
+		private Snapshot(Program program, ExecutionOptions options, Machine machine, Code code, boolean completed,
+				String output, long inputPosition) {
+			this(program, options, machine, code.ip, code.getReturnStack(), completed, output, inputPosition);
+		}
+
+		private Snapshot(Program program, ExecutionOptions options, Machine machine, int ip, IntStack returnStack,
+				boolean completed, String output, long inputPosition) {
+			this.program = program;
+			this.options = options;
+			this.machine = machine;
+			this.ip = ip;
+			this.returnStack = returnStack;
+			this.completed = completed;
+			this.output = output;
+			this.inputPosition = inputPosition;
+		}
+
+		public String run(InputStream input, OutputStream output) {
+			return run(InputSource.of(input), output);
+		}
+
+		public String runFromFile(Path input, OutputStream output) {
+			return run(InputSource.of(input), output);
+		}
+
+		private String run(InputSource input, OutputStream output) {
+			preflush(output);
+			final Profiler profiler = options.getProfiler();
+			final Machine machine = this.machine.fork();
+			final Code code = resume(profiler, machine);
+			final OutputSink sink = replay(output, true);
+			try {
+				if (completed) {
+					sink.terminate();
+					return sink.toString();
+				}
+				return execute(code, machine, openInput(input, code, inputPosition), sink);
+			} finally {
+				if (profiler != null) {
+					profiler.finish(program, code, machine, sink, input);
+				}
+			}
+		}
+
+		// as Program.runStreaming(), from the snapshot
+		public ExecutionResult runStreaming(InputStream input, OutputStream output) {
+			return runStreaming(InputSource.of(input), output);
+		}
+
+		public ExecutionResult runStreamingFromFile(Path input, OutputStream output) {
+			return runStreaming(InputSource.of(input), output);
+		}
+
+		private ExecutionResult runStreaming(InputSource input, OutputStream output) {
+			preflush(output);
+			final Profiler profiler = options.getProfiler();
+			final Machine machine = this.machine.fork();
+			final Code code = resume(profiler, machine);
+			final OutputSink sink = replay(output, false);
+			try {
+				try {
+					if (!completed) {
+						WhitespaceInterpreter.run(code, machine, openInput(input, code, inputPosition), sink);
+					}
+				} catch (RuntimeException ex) {
+					sink.terminate(ex);
+					return ExecutionResult.failed(machine.getInstructionCount(), ex);
+				}
+				sink.terminate();
+				return ExecutionResult.completed(machine.getInstructionCount());
+			} finally {
+				if (profiler != null) {
+					profiler.finish(program, code, machine, sink, input);
+				}
+			}
+		}
+
+		// instructions run to reach the snapshot, which every run starts its count from
+		public long getInstructionCount() {
+			return machine.getInstructionCount();
+		}
+
+		// the same state, run with other options; the numeric mode stays the snapshot's
+		public Snapshot withOptions(ExecutionOptions options) {
+			return new Snapshot(program, options.withNumericMode(machine.getNumericMode()), machine, ip, returnStack,
+					completed, output, inputPosition);
+		}
+
+		/**
+		 * Writes the snapshot as a checkpoint: the program's source hash, the
+		 * positions in the program and the input, the output to replay, both
+		 * stacks and the heap.  Heap pages go out whole as raw big-endian
+		 * values, so even a large heap costs little more than copying it.  The
+		 * options are not written.
+		 */
+		public void write(OutputStream stream) {
+			try {
+				final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+				out.writeInt(CHECKPOINT_MAGIC);
+				out.writeUTF(program.getSourceHash());
+				out.writeBoolean(completed);
+				out.writeInt(ip);
+				out.writeLong(inputPosition);
+				final byte[] text = output.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(text.length);
+				out.write(text);
+				returnStack.write(out);
+				machine.write(out);
+				out.flush();
+			} catch (IOException ex) {
+				throw new IllegalStateException("Error writing checkpoint", ex);
+			}
+		}
+
+		public static Snapshot read(InputStream stream, Program program) {
+			return read(stream, program, ExecutionOptions.DEFAULT);
+		}
+
+		// reads a checkpoint written by write(), to run with the given options as withOptions() would
+		public static Snapshot read(InputStream stream, Program program, ExecutionOptions options) {
+			try {
+				final DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+				if (in.readInt() != CHECKPOINT_MAGIC) {
+					throw new IllegalStateException("Not a checkpoint");
+				}
+				if (!in.readUTF().equals(program.getSourceHash())) {
+					throw new IllegalStateException("Checkpoint was taken from a different program");
+				}
+				final boolean completed = in.readBoolean();
+				final int ip = in.readInt();
+				if (ip < 0 || ip > program.getInstructions().length) {
+					throw new IllegalStateException("Corrupt checkpoint");
+				}
+				final long inputPosition = in.readLong();
+				final byte[] text = new byte[StateCodec.readLength(in)];
+				in.readFully(text);
+				final IntStack returnStack = IntStack.read(in);
+				final Machine machine = Machine.read(in);
+				return new Snapshot(program, options.withNumericMode(machine.getNumericMode()), machine, ip, returnStack,
+						completed, new String(text, StandardCharsets.UTF_8), inputPosition);
+			} catch (IOException ex) {
+				throw new IllegalStateException("Error reading checkpoint", ex);
+			}
+		}
+
+		private Code resume(Profiler profiler, Machine machine) {
+			final Code code = new Code(program, profiler, Guard.of(options, machine), Tracer.of(options),
+					options.getSubroutineCache());
+			code.ip = ip;
+			code.subStack = returnStack.fork();
+			return code;
+		}
+
+		private OutputSink replay(OutputStream stream, boolean retainText) {
+			final OutputSink sink = new OutputSink(stream, options.getFlushPolicies(), retainText);
+			output.codePoints().forEach(sink::writeChar);
+			return sink;
+		}
+	}
+
+	/**
+	 * VM state that outlives a single instruction: the operand stack, the
+	 * heap and the number of instructions dispatched so far.  Only the stack
+	 * and heap of the run's numeric mode exist.
+	 */
+	private static class Machine {
+		private final NumericMode numericMode;
+		private final IntStack stack;
+		private final Heap heap;
+		private final WideStack wideStack;
+		private final WideHeap wideHeap;
+		private long instructionCount = 0;
+
+		public Machine(NumericMode numericMode) {
+			final boolean wide = numericMode == NumericMode.UNBOUNDED;
+			this.numericMode = numericMode;
+			this.stack = wide ? null : new IntStack();
+			this.heap = wide ? null : new Heap();
+			this.wideStack = wide ? new WideStack() : null;
+			this.wideHeap = wide ? new WideHeap() : null;
+		}
+
+		private Machine(NumericMode numericMode, IntStack stack, Heap heap, WideStack wideStack, WideHeap wideHeap,
+				long instructionCount) {
+			this.numericMode = numericMode;
+			this.stack = stack;
+			this.heap = heap;
+			this.wideStack = wideStack;
+			this.wideHeap = wideHeap;
+			this.instructionCount = instructionCount;
+		}
+
+		// an independent copy; the heap's pages are shared until written, so this one must not change again
+		public Machine fork() {
+			if (numericMode == NumericMode.UNBOUNDED) {
+				return new Machine(numericMode, null, null, wideStack.fork(), wideHeap.fork(), instructionCount);
+			}
+			return new Machine(numericMode, stack.fork(), heap.fork(), null, null, instructionCount);
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			out.writeByte(numericMode.ordinal());
+			out.writeLong(instructionCount);
+			if (numericMode == NumericMode.UNBOUNDED) {
+				wideStack.write(out);
+				wideHeap.write(out);
+			} else {
+				stack.write(out);
+				heap.write(out);
+			}
+		}
+
+		public static Machine read(DataInputStream in) throws IOException {
+			final int mode = in.readUnsignedByte();
+			if (mode >= NumericMode.values().length) {
+				throw new IllegalStateException("Corrupt checkpoint");
+			}
+			final long instructionCount = in.readLong();
+			if (mode == NumericMode.UNBOUNDED.ordinal()) {
+				return new Machine(NumericMode.UNBOUNDED, null, null, WideStack.read(in), WideHeap.read(in), instructionCount);
+			}
+			return new Machine(NumericMode.INT, IntStack.read(in), Heap.read(in), null, null, instructionCount);
+		}
+
+		public NumericMode getNumericMode() {
+			return numericMode;
+		}
+
+		public IntStack getStack() {
+			return stack;
+		}
+
+		public Heap getHeap() {
+			return heap;
+		}
+
+		public WideStack getWideStack() {
+			return wideStack;
+		}
+
+		public WideHeap getWideHeap() {
+			return wideHeap;
+		}
+
+		public int getHeapCells() {
+			return heap != null ? heap.size() : wideHeap.size();
+		}
+
+		public int getStackDepth() {
+			return stack != null ? stack.size() : wideStack.size();
+		}
+
+		public void countInstruction() {
+			++instructionCount;
+		}
+
+		public long getInstructionCount() {
+			return instructionCount;
+		}
+	}
+
+	/**
+	 * When buffered output is pushed to the stream and the stream flushed.
+	 * The buffer is always written out when it fills; BUFFER_FULL additionally
+	 * flushes the stream at that point.
+	 */
+	public enum FlushPolicy {
+		NEWLINE, BUFFER_FULL, INPUT_READ, TERMINATION;
+
+		// prompts still appear before input is read, without a syscall per character
+		public static final Set<FlushPolicy> DEFAULT =
+				Collections.unmodifiableSet(EnumSet.of(BUFFER_FULL, INPUT_READ, TERMINATION));
+	}
+
+	/**
+	 * Width of stack and heap values.  INT is 32-bit two's complement and
+	 * wraps on overflow, as this interpreter always has.  UNBOUNDED gives the
+	 * language's arbitrary-precision integers: values are longs, checked for
+	 * overflow, and only become BigIntegers while they do not fit in one.
+	 */
+	public enum NumericMode {
+		INT, UNBOUNDED
+	}
+
+	/**
+	 * Per-run settings.  Immutable: each with method returns a changed copy,
+	 * so one instance can be shared by any number of runs and threads.
+	 */
+	public static final class ExecutionOptions {
+		public static final ExecutionOptions DEFAULT = new ExecutionOptions();
+
+		private final Set<FlushPolicy> flushPolicies;
+		private final NumericMode numericMode;
+		private final Profiler profiler;
+		private final long maxInstructions;
+		private final Duration timeout;
+		private final int maxStackDepth;
+		private final int maxHeapCells;
+		private final int maxCallDepth;
+		private final CancellationToken cancellation;
+		private final int traceSize;
+		private final SubroutineCache subroutineCache;
+
+		private ExecutionOptions() {
+			this(FlushPolicy.DEFAULT, NumericMode.INT, null, Long.MAX_VALUE, null, Integer.MAX_VALUE, Integer.MAX_VALUE,
+					Integer.MAX_VALUE, null, 0, null);
+		}
+
+		private ExecutionOptions(Set<FlushPolicy> flushPolicies, NumericMode numericMode, Profiler profiler,
+				long maxInstructions, Duration timeout, int maxStackDepth, int maxHeapCells, int maxCallDepth,
+				CancellationToken cancellation, int traceSize, SubroutineCache subroutineCache) {
+			this.flushPolicies = flushPolicies;
+			this.numericMode = numericMode;
+			this.profiler = profiler;
+			this.maxInstructions = maxInstructions;
+			this.timeout = timeout;
+			this.maxStackDepth = maxStackDepth;
+			this.maxHeapCells = maxHeapCells;
+			this.maxCallDepth = maxCallDepth;
+			this.cancellation = cancellation;
+			this.traceSize = traceSize;
+			this.subroutineCache = subroutineCache;
+		}
+
+		public ExecutionOptions withFlushPolicies(Set<FlushPolicy> flushPolicies) {
+			final Set<FlushPolicy> policies = EnumSet.noneOf(FlushPolicy.class);
+			policies.addAll(flushPolicies);
+			return new ExecutionOptions(Collections.unmodifiableSet(policies), numericMode, profiler, maxInstructions,
+					timeout, maxStackDepth, maxHeapCells, maxCallDepth, cancellation, traceSize, subroutineCache);
+		}
+
+		public ExecutionOptions withNumericMode(NumericMode numericMode) {
+			return new ExecutionOptions(flushPolicies, Objects.requireNonNull(numericMode), profiler, maxInstructions,
+					timeout, maxStackDepth, maxHeapCells, maxCallDepth, cancellation, traceSize, subroutineCache);
+		}
+
+		// null turns profiling off
+		public ExecutionOptions withProfiler(Profiler profiler) {
+			return new ExecutionOptions(flushPolicies, numericMode, profiler, maxInstructions, timeout, maxStackDepth,
+					maxHeapCells, maxCallDepth, cancellation, traceSize, subroutineCache);
+		}
+
+		/**
+		 * Counts instructions after peephole fusion, as a Profiler does, so a
+		 * superinstruction such as "push 1; add" counts once and a program
+		 * reaches the limit later than its source instruction count suggests.
+		 * Loop idioms and memoized calls count every fused instruction they
+		 * stand in for, so they never change where a run stops.
+		 */
+		public ExecutionOptions withMaxInstructions(long maxInstructions) {
+			return new ExecutionOptions(flushPolicies, numericMode, profiler, requirePositive(maxInstructions), timeout,
+					maxStackDepth, maxHeapCells, maxCallDepth, cancellation, traceSize, subroutineCache);
+		}
+
+		// measured from the start of each run; null means no time limit
+		public ExecutionOptions withTimeout(Duration timeout) {
+			return new ExecutionOptions(flushPolicies, numericMode, profiler, maxInstructions, timeout, maxStackDepth,
+					maxHeapCells, maxCallDepth, cancellation, traceSize, subroutineCache);
+		}
+
+		public ExecutionOptions withMaxStackDepth(int maxStackDepth) {
+			return new ExecutionOptions(flushPolicies, numericMode, profiler, maxInstructions, timeout,
+					(int)requirePositive(maxStackDepth), maxHeapCells, maxCallDepth, cancellation, traceSize,
+					subroutineCache);
+		}
+
+		public ExecutionOptions withMaxHeapCells(int maxHeapCells) {
+			return new ExecutionOptions(flushPolicies, numericMode, profiler, maxInstructions, timeout, maxStackDepth,
+					(int)requirePositive(maxHeapCells), maxCallDepth, cancellation, traceSize, subroutineCache);
+		}
+
+		public ExecutionOptions withMaxCallDepth(int maxCallDepth) {
+			return new ExecutionOptions(flushPolicies, numericMode, profiler, maxInstructions, timeout, maxStackDepth,
+					maxHeapCells, (int)requirePositive(maxCallDepth), cancellation, traceSize, subroutineCache);
+		}
+
+		public ExecutionOptions withCancellation(CancellationToken cancellation) {
+			return new ExecutionOptions(flushPolicies, numericMode, profiler, maxInstructions, timeout, maxStackDepth,
+					maxHeapCells, maxCallDepth, cancellation, traceSize, subroutineCache);
+		}
+
+		/**
+		 * Keeps the last traceSize instructions each run executes, and attaches
+		 * them to the exception of a run that fails as a suppressed
+		 * ExecutionTrace.  0 turns tracing off.  Runs that trace skip the loop
+		 * idioms, as profiled and limited runs do.
+		 */
+		public ExecutionOptions withTraceSize(int traceSize) {
+			if (traceSize < 0) {
+				throw new IllegalArgumentException("Trace size must not be negative");
+			}
+			return new ExecutionOptions(flushPolicies, numericMode, profiler, maxInstructions, timeout, maxStackDepth,
+					maxHeapCells, maxCallDepth, cancellation, traceSize, subroutineCache);
+		}
+
+		/**
+		 * Memoizes calls to pure subroutines in the given cache; null turns
+		 * memoization off.  Only INT runs of compiled programs memoize, not
+		 * lazy ones, and only when they are not profiled, limited or traced,
+		 * all of which need to see every instruction.
+		 */
+		public ExecutionOptions withSubroutineCache(SubroutineCache subroutineCache) {
+			return new ExecutionOptions(flushPolicies, numericMode, profiler, maxInstructions, timeout, maxStackDepth,
+					maxHeapCells, maxCallDepth, cancellation, traceSize, subroutineCache);
+		}
+
+		public Set<FlushPolicy> getFlushPolicies() {
+			return flushPolicies;
+		}
+
+		public NumericMode getNumericMode() {
+			return numericMode;
+		}
+
+		public Profiler getProfiler() {
+			return profiler;
+		}
+
+		public long getMaxInstructions() {
+			return maxInstructions;
+		}
+
+		public Duration getTimeout() {
+			return timeout;
+		}
+
+		public int getMaxStackDepth() {
+			return maxStackDepth;
+		}
+
+		public int getMaxHeapCells() {
+			return maxHeapCells;
+		}
+
+		public int getMaxCallDepth() {
+			return maxCallDepth;
+		}
+
+		public CancellationToken getCancellation() {
+			return cancellation;
+		}
+
+		public int getTraceSize() {
+			return traceSize;
+		}
+
+		public SubroutineCache getSubroutineCache() {
+			return subroutineCache;
+		}
+
+		// whether any limit or cancellation applies, so runs without them skip checking entirely
+		boolean isLimited() {
+			return maxInstructions != Long.MAX_VALUE || timeout != null || maxStackDepth != Integer.MAX_VALUE
+					|| maxHeapCells != Integer.MAX_VALUE || maxCallDepth != Integer.MAX_VALUE || cancellation != null;
+		}
+
+		private static long requirePositive(long limit) {
+			if (limit < 1) {
+				throw new IllegalArgumentException("Limits must be at least 1");
+			}
+			return limit;
+		}
+	}
+
+	// lets another thread stop a run; one token can be shared by any number of runs
+	public static final class CancellationToken {
+		private volatile boolean cancelled = false;
+
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	// a run stopped because it reached one of its ExecutionOptions limits or was cancelled
+	public static class ExecutionLimitException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+
+		public enum Limit {
+			INSTRUCTIONS, TIME, STACK_DEPTH, HEAP_CELLS, CALL_DEPTH, CANCELLED
+		}
+
+		private final Limit limit;
+		private final transient Guard guard;
+
+		public ExecutionLimitException(Limit limit, String message) {
+			this(limit, message, null);
+		}
+
+		private ExecutionLimitException(Limit limit, String message, Guard guard) {
+			super(message);
+			this.limit = limit;
+			this.guard = guard;
+		}
+
+		public Limit getLimit() {
+			return limit;
+		}
+
+		/**
+		 * The state the run stopped in, which can be resumed or written out
+		 * as a checkpoint.  Limits are only checked between instructions, so
+		 * the stop always falls on an instruction boundary.  Null when this
+		 * exception did not come from a run.
+		 */
+		public Snapshot getSnapshot() {
+			return guard != null ? guard.snapshot() : null;
+		}
+	}
+
+	/**
+	 * The last instructions a failed run executed, oldest first, attached to
+	 * its exception as a suppressed exception.  Each entry gives the index of
+	 * the instruction, the instruction itself, and the depth and top of the
+	 * operand stack it started from.  It carries no stack trace of its own.
+	 */
+	public static final class ExecutionTrace extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		private final List<String> entries;
+
+		private ExecutionTrace(long instructionCount, List<String> entries) {
+			super("Last " + entries.size() + " of " + instructionCount + " instructions executed:"
+					+ System.lineSeparator() + "\t" + String.join(System.lineSeparator() + "\t", entries), null, false, false);
+			this.entries = Collections.unmodifiableList(entries);
+		}
+
+		// the trace attached to a run's exception, or null if the run was not traced
+		public static ExecutionTrace of(Throwable failure) {
+			for (Throwable suppressed : failure.getSuppressed()) {
+				if (suppressed instanceof ExecutionTrace) {
+					return (ExecutionTrace)suppressed;
+				}
+			}
+			return null;
+		}
+
+		public List<String> getEntries() {
+			return entries;
+		}
+	}
+
+	/**
+	 * Ring buffer behind ExecutionTrace.  Every slot is allocated up front and
+	 * each instruction overwrites the oldest one, so tracing costs a few array
+	 * stores per instruction and nothing is allocated until a run fails.  The
+	 * instruction itself is looked up from its index only then.
+	 */
+	private static class Tracer {
+		private final int[] ips;
+		private final int[] depths;
+		private final long[] tops;
+		private final BigInteger[] bigTops;		// the top when it does not fit a long, for UNBOUNDED
+		private int next = 0;
+		private long recorded = 0;
+
+		public Tracer(int size) {
+			ips = new int[size];
+			depths = new int[size];
+			tops = new long[size];
+			bigTops = new BigInteger[size];
+		}
+
+		// null when the options turn tracing off
+		public static Tracer of(ExecutionOptions options) {
+			return options.getTraceSize() > 0 ? new Tracer(options.getTraceSize()) : null;
+		}
+
+		public void record(int ip, int depth, long top, BigInteger bigTop) {
+			ips[next] = ip;
+			depths[next] = depth;
+			tops[next] = top;
+			bigTops[next] = bigTop;
+			if (++next == ips.length) {
+				next = 0;
+			}
+			++recorded;
+		}
+
+		public ExecutionTrace dump(Code code) {
+			final int count = (int)Math.min(recorded, ips.length);
+			final List<String> entries = new ArrayList<>(count);
+			for (int entry = 0; entry < count; entry++) {
+				final int slot = Math.floorMod(next - count + entry, ips.length);
+				final String stack = depths[slot] == 0 ? "empty"
+						: depths[slot] + " deep, top " + (bigTops[slot] != null ? bigTops[slot] : Long.toString(tops[slot]));
+				entries.add(ips[slot] + ": " + code.getInstruction(ips[slot]) + " (stack " + stack + ")");
+			}
+			return new ExecutionTrace(recorded, entries);
+		}
+	}
+
+	/**
+	 * Enforces the limits of one run.  Checks only happen when control moves
+	 * backwards or into a subroutine, which any run that does not end on its
+	 * own must keep doing; in between, a run can overshoot a limit by at most
+	 * one straight stretch of code.  The clock and the cancellation token are
+	 * only looked at every CLOCK_INTERVAL checks.  A check comes after the
+	 * jump or call it guards, so a stopped run always rests on an instruction
+	 * boundary and can be resumed from its snapshot.
+	 */
+	private static class Guard {
+		private static final int CLOCK_INTERVAL = 1024;
+
+		private final ExecutionOptions options;
+		private final Machine machine;
+		private final long deadline;
+		private int untilClock = 1;
+		private Code code;					// set by the Code this guards
+		private InputSource input;			// set by openInput()
+		private long inputPosition = 0;		// where the input starts, for resuming
+
+		public Guard(ExecutionOptions options, Machine machine) {
+			this.options = options;
+			this.machine = machine;
+			final Duration timeout = options.getTimeout();
+			this.deadline = timeout != null ? System.nanoTime() + saturatedNanos(timeout) : 0;
+		}
+
+		// null when the options set no limits at all
+		public static Guard of(ExecutionOptions options, Machine machine) {
+			return options.isLimited() ? new Guard(options, machine) : null;
+		}
+
+		public void checkCall(int callDepth) {
+			checkCall(callDepth, machine.getInstructionCount(), machine.getStackDepth());
+		}
+
+		public void check() {
+			check(machine.getInstructionCount(), machine.getStackDepth());
+		}
+
+		// for the int engine, which keeps the count and the stack depth in locals
+		public void checkCall(int callDepth, long instructionCount, int stackDepth) {
+			if (callDepth > options.getMaxCallDepth()) {
+				throw stop(ExecutionLimitException.Limit.CALL_DEPTH,
+						"Call depth limit of " + options.getMaxCallDepth() + " exceeded");
+			}
+			check(instructionCount, stackDepth);
+		}
+
+		public void check(long instructionCount, int stackDepth) {
+			if (instructionCount > options.getMaxInstructions()) {
+				throw stop(ExecutionLimitException.Limit.INSTRUCTIONS,
+						"Instruction limit of " + options.getMaxInstructions() + " exceeded");
+			}
+			if (stackDepth > options.getMaxStackDepth()) {
+				throw stop(ExecutionLimitException.Limit.STACK_DEPTH,
+						"Stack depth limit of " + options.getMaxStackDepth() + " exceeded");
+			}
+			if (machine.getHeapCells() > options.getMaxHeapCells()) {
+				throw stop(ExecutionLimitException.Limit.HEAP_CELLS,
+						"Heap cell limit of " + options.getMaxHeapCells() + " exceeded");
+			}
+			if (--untilClock == 0) {
+				untilClock = CLOCK_INTERVAL;
+				final CancellationToken cancellation = options.getCancellation();
+				if (cancellation != null && cancellation.isCancelled()) {
+					throw stop(ExecutionLimitException.Limit.CANCELLED, "Execution cancelled");
+				}
+				if (options.getTimeout() != null && System.nanoTime() - deadline > 0) {
+					throw stop(ExecutionLimitException.Limit.TIME,
+							"Time limit of " + options.getTimeout() + " exceeded");
+				}
+			}
+		}
+
+		// the run's input, whose position a snapshot records; position is where it starts
+		public void track(InputSource input, long position) {
+			this.input = input;
+			this.inputPosition = position;
+		}
+
+		public Snapshot snapshot() {
+			return new Snapshot(code.getProgram(), options, machine, code, false, "",
+					input != null ? input.getPosition() : inputPosition);
+		}
+
+		private ExecutionLimitException stop(ExecutionLimitException.Limit limit, String message) {
+			return new ExecutionLimitException(limit, message, this);
+		}
+
+		private static long saturatedNanos(Duration timeout) {
+			try {
+				return timeout.toNanos();
+			} catch (ArithmeticException ex) {
+				return Long.MAX_VALUE / 2;
+			}
+		}
+	}
+
+	/**
+	 * Optional instrumentation, switched on by passing one in the
+	 * ExecutionOptions.  Counts add up over every run it is passed to, while
+	 * stack depth and heap cells are the largest seen in any one run.  It is
+	 * not thread-safe: concurrent runs need a profiler each.
+	 *
+	 * Opcodes are reported after peephole fusion, so superinstructions show
+	 * up under their own names.  Label hits count transfers of control by a
+	 * jump or call, under every label that names the target.
+	 */
+	public static final class Profiler {
+		private final long[] opCodes = new long[OpCode.values().length];
+		private final Map<String, Long> labelHits = new TreeMap<>();
+		private long runs = 0;
+		private int maxStackDepth = 0;
+		private int heapCells = 0;
+		private long inputCharacters = 0;
+		private long outputBytes = 0;
+
+		// called before each instruction, with the stack depth it starts from
+		void record(OpCode opCode, int stackDepth) {
+			++opCodes[opCode.ordinal()];
+			if (stackDepth > maxStackDepth) {
+				maxStackDepth = stackDepth;
+			}
+		}
+
+		void finish(Program program, Code code, Machine machine, OutputSink output, InputSource input) {
+			++runs;
+			if (input != null) {
+				inputCharacters += input.getCharactersRead();
+			}
+			heapCells = Math.max(heapCells, machine.getHeapCells());
+			outputBytes += output.getBytesWritten();
+			final long[] targetHits = code.getTargetHits();
+			for (Label label : program.getLabels().values()) {
+				if (label.getIp() >= targetHits.length) {
+					continue;		// declared after the furthest point this run loaded
+				}
+				final long hits = targetHits[label.getIp()];
+				if (hits > 0) {
+					labelHits.merge(label.getLabel(), hits, Long::sum);
+				}
+			}
+		}
+
+		public long getRuns() {
+			return runs;
+		}
+
+		// instructions after peephole fusion, the same count the instruction limit uses
+		public long getInstructionCount() {
+			return Arrays.stream(opCodes).sum();
+		}
+
+		// executions by opcode name, in opcode order, leaving out those never executed
+		public Map<String, Long> getOpCodeCounts() {
+			final Map<String, Long> counts = new LinkedHashMap<>();
+			for (OpCode opCode : OpCode.values()) {
+				if (opCodes[opCode.ordinal()] > 0) {
+					counts.put(opCode.name(), opCodes[opCode.ordinal()]);
+				}
+			}
+			return Collections.unmodifiableMap(counts);
+		}
+
+		// label names are spelled with 's' for space and 't' for tab
+		public Map<String, Long> getLabelHits() {
+			return Collections.unmodifiableMap(new TreeMap<>(labelHits));
+		}
+
+		public int getMaxStackDepth() {
+			return maxStackDepth;
+		}
+
+		// distinct heap cells stored to
+		public int getHeapCells() {
+			return heapCells;
+		}
+
+		public long getInputCharacters() {
+			return inputCharacters;
+		}
+
+		public long getOutputBytes() {
+			return outputBytes;
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder report = new StringBuilder();
+			report.append("runs: ").append(runs).append('\n');
+			report.append("instructions: ").append(getInstructionCount()).append('\n');
+			report.append("max stack depth: ").append(maxStackDepth).append('\n');
+			report.append("heap cells: ").append(heapCells).append('\n');
+			report.append("input characters: ").append(inputCharacters).append('\n');
+			report.append("output bytes: ").append(outputBytes).append('\n');
+			report.append("opcodes:\n");
+			getOpCodeCounts().forEach((name, count) -> report.append("  ").append(name).append(' ').append(count).append('\n'));
+			report.append("labels:\n");
+			labelHits.forEach((name, count) -> report.append("  ").append(name).append(' ').append(count).append('\n'));
+			return report.toString();
+		}
+	}
+
+	/**
+	 * Program output.  Characters and numbers are encoded straight into a
+	 * reusable byte buffer (UTF-8 by hand, other charsets through the JDK).
+	 * When retained, the text is also kept so execute() can return it.
+	 */
+	private static class OutputSink {
+		private static final int BUFFER_SIZE = 8192;
+		private static final boolean UTF8 = Charset.defaultCharset().equals(StandardCharsets.UTF_8);
+
+		private final OutputStream outputStream;
+		private final boolean flushOnNewline;
+		private final boolean flushOnBufferFull;
+		private final boolean flushOnInput;
+		private final boolean flushOnTermination;
+		private final StringBuilder text;
+		private final byte[] buffer;
+		private int count = 0;
+		private long bytesWritten = 0;
+
+		public OutputSink(OutputStream outputStream, Set<FlushPolicy> flushPolicies, boolean retainText) {
+			this.outputStream = outputStream;
+			this.flushOnNewline = flushPolicies.contains(FlushPolicy.NEWLINE);
+			this.flushOnBufferFull = flushPolicies.contains(FlushPolicy.BUFFER_FULL);
+			this.flushOnInput = flushPolicies.contains(FlushPolicy.INPUT_READ);
+			this.flushOnTermination = flushPolicies.contains(FlushPolicy.TERMINATION);
+			this.buffer = outputStream != null ? new byte[BUFFER_SIZE] : null;
+			this.text = retainText ? new StringBuilder() : null;
+		}
+
+		public void writeChar(int codePoint) {
+			if (!Character.isValidCodePoint(codePoint)) {
+				throw new IllegalArgumentException(String.format("Not a valid Unicode code point: 0x%X", codePoint));
+			}
+			if (text != null) {
+				text.appendCodePoint(codePoint);
+			}
+			if (outputStream == null) {
+				return;
+			}
+			if (codePoint < 0x80) {
+				ensure(1);
+				buffer[count++] = (byte)codePoint;
+				if (codePoint == '\n' && flushOnNewline) {
+					flush();
+				}
+			} else if (UTF8 && (codePoint < Character.MIN_SURROGATE || codePoint > Character.MAX_SURROGATE)) {
+				ensure(4);
+				if (codePoint < 0x800) {
+					buffer[count++] = (byte)(0xC0 | (codePoint >>> 6));
+				} else {
+					if (codePoint < 0x10000) {
+						buffer[count++] = (byte)(0xE0 | (codePoint >>> 12));
+					} else {
+						buffer[count++] = (byte)(0xF0 | (codePoint >>> 18));
+						buffer[count++] = (byte)(0x80 | ((codePoint >>> 12) & 0x3F));
+					}
+					buffer[count++] = (byte)(0x80 | ((codePoint >>> 6) & 0x3F));
+				}
+				buffer[count++] = (byte)(0x80 | (codePoint & 0x3F));
+			} else {
+				final byte[] bytes = Character.toString(codePoint).getBytes();
+				ensure(bytes.length);
+				System.arraycopy(bytes, 0, buffer, count, bytes.length);
+				count += bytes.length;
+			}
+		}
+
+		public void writeNumber(long value) {
+			if (text != null) {
+				text.append(value);
+			}
+			if (outputStream == null) {
+				return;
+			}
+			ensure(20);
+			// digits are taken from the negated value, so Long.MIN_VALUE needs no special case
+			long remaining = value;
+			if (remaining < 0) {
+				buffer[count++] = '-';
+			} else {
+				remaining = -remaining;
+			}
+			int start = count;
+			do {
+				buffer[count++] = (byte)('0' - remaining % 10);
+				remaining /= 10;
+			} while (remaining != 0);
+			for (int low = start, high = count - 1; low < high; low++, high--) {
+				byte digit = buffer[low];
+				buffer[low] = buffer[high];
+				buffer[high] = digit;
+			}
+		}
+
+		public void writeNumber(BigInteger value) {
+			final String digits = value.toString();
+			if (text != null) {
+				text.append(digits);
+			}
+			if (outputStream == null) {
+				return;
+			}
+			for (int index = 0; index < digits.length(); index++) {
+				ensure(1);
+				buffer[count++] = (byte)digits.charAt(index);
+			}
+		}
+
+		public void beforeInput() {
+			if (flushOnInput) {
+				flush();
+			}
+		}
+
+		// the program stopped cleanly; push out whatever is left
+		public void terminate() {
+			drain(flushOnTermination);
+		}
+
+		// the program failed; output written so far must still reach the stream
+		public void terminate(RuntimeException failure) {
+			// I cannot believe the foolishness of depending on output for tests when
+			// an exceptional circumstance exists!  Oh well...stupid is as stupid does.
+			try {
+				terminate();
+			} catch (RuntimeException ex) {
+				failure.addSuppressed(ex);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return text != null ? text.toString() : "";
+		}
+
+		// bytes that reached the stream; without one, the encoded size of the retained text
+		public long getBytesWritten() {
+			if (outputStream == null && text != null) {
+				return text.toString().getBytes(Charset.defaultCharset()).length;
+			}
+			return bytesWritten;
+		}
+
+		private void ensure(int bytes) {
+			if (count + bytes > buffer.length) {
+				drain(flushOnBufferFull);
+			}
+		}
+
+		private void flush() {
+			drain(true);
+		}
+
+		private void drain(boolean flushStream) {
+			if (outputStream == null) {
+				return;
+			}
+			try {
+				if (count > 0) {
+					outputStream.write(buffer, 0, count);
+					bytesWritten += count;
+					count = 0;
+				}
+				if (flushStream) {
+					outputStream.flush();
+				}
+			} catch (IOException ex) {
+				throw new IllegalStateException("Error writing to output stream");
+			}
+		}
+	}
+
+	interface ICode {
+		public char nextOpCode();
+		public boolean isCompleted();
+	}
+
+	/**
+	 * Decoded instruction set.  INVALID stands in for an illegal sequence
+	 * found while decoding and only fails if execution actually reaches it.
+	 * Each opcode carries its number from Op, which is what the int engine
+	 * switches on.
+	 */
+	enum OpCode {
+		PUSH(Op.PUSH), DUPLICATE_NTH(Op.DUPLICATE_NTH), SLIDE(Op.SLIDE), DUPLICATE(Op.DUPLICATE),
+		DISCARD(Op.DISCARD), SWAP(Op.SWAP),
+		PUSH_WIDE(Op.PUSH_WIDE),		// a literal that does not fit in an int
+		ADD(Op.ADD), SUBTRACT(Op.SUBTRACT), MULTIPLY(Op.MULTIPLY), DIVIDE(Op.DIVIDE), MODULO(Op.MODULO),
+		STORE(Op.STORE), RETRIEVE(Op.RETRIEVE),
+		OUTPUT_CHAR(Op.OUTPUT_CHAR), OUTPUT_NUMBER(Op.OUTPUT_NUMBER), READ_CHAR(Op.READ_CHAR), READ_NUMBER(Op.READ_NUMBER),
+		CALL(Op.CALL), JUMP(Op.JUMP), JUMP_ZERO(Op.JUMP_ZERO), JUMP_NEGATIVE(Op.JUMP_NEGATIVE),
+		RETURN(Op.RETURN), END(Op.END),
+		// superinstructions produced by PeepholeOptimizer, never by the decoder
+		ADD_IMMEDIATE(Op.ADD_IMMEDIATE), RETRIEVE_AT(Op.RETRIEVE_AT), STORE_AT(Op.STORE_AT),
+		DUPLICATE_JUMP_ZERO(Op.DUPLICATE_JUMP_ZERO),
+		INVALID(Op.INVALID);
+
+		private final int number;
+
+		OpCode(int number) {
+			this.number = number;
+		}
+
+		public int getNumber() {
+			return number;
+		}
+	}
+
+	/**
+	 * Program input.  Bytes are decoded a block at a time by the charset's
+	 * own bulk decoder, which has ASCII and UTF-8 fast paths, into a char
+	 * buffer that reads work on directly.  A number whose line lies within
+	 * the buffer is parsed in place, with no string built for it.  Decoding
+	 * matches InputStreamReader, malformed input included, and characters
+	 * come back as UTF-16 units as read() returns them.  The bytes are
+	 * either pulled from a stream or are a mapped file.
+	 */
+	private static class InputSource {
+		private static final int BUFFER_SIZE = 8192;
+
+		private final InputStream stream;				// null when the bytes are a mapped file
+		private final ByteBuffer bytes;
+		private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final char[] chars = new char[BUFFER_SIZE];
+		private final CharBuffer text = CharBuffer.wrap(chars);
+		private int position = 0;
+		private int limit = 0;
+		private boolean endOfBytes;
+		private boolean finished = false;
+		private long charactersBefore = 0;				// in blocks already read through
+		private long skipped = 0;
+
+		private InputSource(InputStream stream, ByteBuffer bytes) {
+			this.stream = stream;
+			this.bytes = bytes;
+			this.endOfBytes = stream == null;
+		}
+
+		// null when there is no input, as for a null stream
+		public static InputSource of(InputStream input) {
+			return input != null ? new InputSource(input, ByteBuffer.allocate(BUFFER_SIZE).limit(0)) : null;
+		}
+
+		public static InputSource of(ByteBuffer mapped) {
+			return new InputSource(null, mapped);
+		}
+
+		// maps the file rather than reading it onto the heap
+		public static InputSource of(Path input) {
+			try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+				return of(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			} catch (IOException ex) {
+				throw new IllegalStateException("Error reading input", ex);
+			}
+		}
+
+		// characters consumed so far, counting those skipped
+		public long getPosition() {
+			return charactersBefore + position;
+		}
+
+		// characters the run itself read
+		public long getCharactersRead() {
+			return getPosition() - skipped;
+		}
+
+		public void skip(long count) {
+			try {
+				long remaining = count;
+				while (remaining > 0) {
+					if (position == limit && !fill()) {
+						throw new IllegalStateException("Input ends before the position the run was stopped at");
+					}
+					final int step = (int)Math.min(remaining, limit - position);
+					position += step;
+					remaining -= step;
+				}
+			} catch (IOException ex) {
+				throw new IllegalStateException("IOException skipping input", ex);
+			}
+			skipped += count;
+		}
+
+		public int read() {
+			if (position == limit) {
+				try {
+					if (!fill()) {
+						return -1;
+					}
+				} catch (IOException ex) {
+					throw new IllegalStateException("IOException reading character from input");
+				}
+			}
+			return chars[position++];
+		}
+
+		public int readNumber() {
+			final int end = lineEnd();
+			if (end < 0) {
+				final String number = readLine();
+				final int radix = radixOf(number, 0, number.length());
+				return Integer.parseInt(number.substring(prefixLength(radix)), radix);
+			}
+			final int start = position;
+			position = end + 1;
+			final int radix = radixOf(text, start, end);
+			final int digits = start + prefixLength(radix);
+			try {
+				return Integer.parseInt(text, digits, end, radix);
+			} catch (NumberFormatException ex) {
+				// parsed again from a string, so the message names the input as before
+				return Integer.parseInt(new String(chars, digits, end - digits), radix);
+			}
+		}
+
+		// a Long, or a BigInteger when the value is out of long range
+		public Object readWideNumber() {
+			final int end = lineEnd();
+			if (end < 0) {
+				final String number = readLine();
+				final int radix = radixOf(number, 0, number.length());
+				return narrow(new BigInteger(number.substring(prefixLength(radix)), radix));
+			}
+			final int start = position;
+			position = end + 1;
+			final int radix = radixOf(text, start, end);
+			final int digits = start + prefixLength(radix);
+			try {
+				return Long.parseLong(text, digits, end, radix);
+			} catch (NumberFormatException ex) {
+				return narrow(new BigInteger(new String(chars, digits, end - digits), radix));
+			}
+		}
+
+		private static Object narrow(BigInteger value) {
+			return value.bitLength() < Long.SIZE ? (Object)value.longValue() : value;
+		}
+
+		// index of the LF ending the next line, or -1 when that line runs past the buffer
+		private int lineEnd() {
+			if (position == limit) {
+				try {
+					if (!fill()) {
+						return -1;
+					}
+				} catch (IOException ex) {
+					throw new IllegalStateException("IOException reading number from input");
+				}
+			}
+			for (int index = position; index < limit; index++) {
+				if (chars[index] == '\n') {
+					return index;
+				}
+			}
+			return -1;
+		}
+
+		private String readLine() {
+			final StringBuilder sb = new StringBuilder();
+			try {
+				while (position < limit || fill()) {
+					final char ch = chars[position++];
+					if (ch == '\n') {
+						break;
+					}
+					sb.append(ch);
+				}
+			} catch (IOException ex) {
+				throw new IllegalStateException("IOException reading number from input");
+			}
+			return sb.toString();
+		}
+
+		// decodes the next block into the buffer; false once the input is exhausted
+		private boolean fill() throws IOException {
+			charactersBefore += limit;
+			position = 0;
+			limit = 0;
+			final CharBuffer out = CharBuffer.wrap(chars);
+			while (!finished && out.position() == 0) {
+				final CoderResult result = decoder.decode(bytes, out, endOfBytes);
+				if (result.isUnderflow()) {
+					if (endOfBytes) {
+						decoder.flush(out);
+						finished = true;
+					} else if (out.position() == 0) {
+						endOfBytes = !readBytes();
+					}
+				}
+			}
+			limit = out.position();
+			return limit > 0;
+		}
+
+		// appends what the stream has to the bytes not yet decoded
+		private boolean readBytes() throws IOException {
+			bytes.compact();
+			final int count = stream.read(bytes.array(), bytes.position(), bytes.remaining());
+			if (count > 0) {
+				bytes.position(bytes.position() + count);
+			}
+			bytes.flip();
+			return count >= 0;
+		}
+	}
+
+	/**
+	 * Dense opcode numbers as compile-time constants, so the int engine's
+	 * switch is a plain tableswitch on an int loaded from the program rather
+	 * than a lookup through the enum's ordinal.
+	 */
+	private static final class Op {
+		static final int PUSH = 0, DUPLICATE_NTH = 1, SLIDE = 2, DUPLICATE = 3, DISCARD = 4, SWAP = 5,
+				PUSH_WIDE = 6, ADD = 7, SUBTRACT = 8, MULTIPLY = 9, DIVIDE = 10, MODULO = 11,
+				STORE = 12, RETRIEVE = 13, OUTPUT_CHAR = 14, OUTPUT_NUMBER = 15, READ_CHAR = 16, READ_NUMBER = 17,
+				CALL = 18, JUMP = 19, JUMP_ZERO = 20, JUMP_NEGATIVE = 21, RETURN = 22, END = 23,
+				ADD_IMMEDIATE = 24, RETRIEVE_AT = 25, STORE_AT = 26, DUPLICATE_JUMP_ZERO = 27, INVALID = 28;
+		// whole loops, see IdiomRecognizer; these have no OpCode
+		static final int PRINT_STRING = 29, FILL = 30, COPY = 31;
+	}
+
+	private static class Instruction {
+		private final OpCode opCode;
+		private final int operand;
+		private final String label;
+		private final int target;
+		private final String message;
+		private final BigInteger constant;
+
+		private Instruction(OpCode opCode, int operand, String label, int target, String message, BigInteger constant) {
+			this.opCode = opCode;
+			this.operand = operand;
+			this.label = label;
+			this.target = target;
+			this.message = message;
+			this.constant = constant;
+		}
+
+		public static Instruction of(OpCode opCode) {
+			return new Instruction(opCode, 0, null, -1, null, null);
+		}
+
+		public static Instruction withOperand(OpCode opCode, int operand) {
+			return new Instruction(opCode, operand, null, -1, null, null);
+		}
+
+		public static Instruction withLabel(OpCode opCode, String label) {
+			return new Instruction(opCode, 0, label, -1, null, null);
+		}
+
+		public static Instruction invalid(String message) {
+			return new Instruction(OpCode.INVALID, 0, null, -1, message, null);
+		}
+
+		public static Instruction withTarget(OpCode opCode, String label, int target) {
+			return new Instruction(opCode, 0, label, target, null, null);
+		}
+
+		// message is the failure for engines that cannot hold the constant
+		public static Instruction withConstant(OpCode opCode, BigInteger constant, String message) {
+			return new Instruction(opCode, 0, null, -1, message, constant);
+		}
+
+		public Instruction resolve(int target) {
+			return new Instruction(opCode, operand, label, target, message, constant);
+		}
+
+		public boolean isBranch() {
+			return label != null;
+		}
+
+		public OpCode getOpCode() {
+			return opCode;
+		}
+
+		public int getOperand() {
+			return operand;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		// instruction index a flow instruction transfers control to
+		public int getTarget() {
+			return target;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public BigInteger getConstant() {
+			return constant;
+		}
+
+		// as traces show it: the opcode with its operand, label or failure
+		@Override
+		public String toString() {
+			switch (opCode) {
+			case PUSH:
+			case DUPLICATE_NTH:
+			case SLIDE:
+			case ADD_IMMEDIATE:
+			case RETRIEVE_AT:
+			case STORE_AT:
+				return opCode + " " + operand;
+			case PUSH_WIDE:
+				return opCode + " " + constant;
+			case INVALID:
+				return opCode + " (" + message + ")";
+			default:
+				return label != null ? opCode + " " + label : opCode.toString();
+			}
+		}
+	}
+
+	/**
+	 * Growable operand stack of primitive ints.  Nothing is allocated once the
+	 * backing array has grown to the program's working depth.
+	 */
+	private static class IntStack {
+		private static final int INITIAL_CAPACITY = 64;
+
+		private int[] values = new int[INITIAL_CAPACITY];
+		private int size = 0;
+
+		public void push(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size << 1);
+			}
+			values[size++] = value;
+		}
+
+		public int pop() {
+			if (size == 0) {
+				throw new IllegalStateException("Stack underflow");
+			}
+			return values[--size];
+		}
+
+		public int peek() {
+			if (size == 0) {
+				throw new IllegalStateException("Stack underflow");
+			}
+			return values[size - 1];
+		}
+
+		// pushes a copy of the nth value from the top, where 0 is the top itself
+		public void copy(int index) {
+			if (index < 0 || index >= size) {
+				throw new IllegalStateException("Stack index " + index + " is out of range");
+			}
+			push(values[size - 1 - index]);
+		}
+
+		// discards n values beneath the top, or everything beneath it when n is out of range
+		public void slide(int itemCount) {
+			int top = pop();
+			if (itemCount < 0 || itemCount >= size) {
+				size = 0;
+			} else {
+				size -= itemCount;
+			}
+			values[size++] = top;
+		}
+
+		public void swap() {
+			if (size < 2) {
+				throw new IllegalStateException("Stack underflow");
+			}
+			int top = values[size - 1];
+			values[size - 1] = values[size - 2];
+			values[size - 2] = top;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public IntStack fork() {
+			final IntStack copy = new IntStack();
+			copy.values = Arrays.copyOf(values, Math.max(size, INITIAL_CAPACITY));
+			copy.size = size;
+			return copy;
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			out.writeInt(size);
+			StateCodec.writeInts(out, values, size);
+		}
+
+		public static IntStack read(DataInputStream in) throws IOException {
+			final IntStack stack = new IntStack();
+			stack.size = StateCodec.readLength(in);
+			stack.values = StateCodec.readInts(in, stack.size, INITIAL_CAPACITY);
+			return stack;
+		}
+	}
+
+	/**
+	 * Operand stack for NumericMode.UNBOUNDED.  Values are kept in a long[];
+	 * one that does not fit in a long is held in the parallel BigInteger[]
+	 * slot instead, so the common case allocates nothing.  A BigInteger is
+	 * only ever stored when it is out of long range, which keeps every value
+	 * in one canonical form.
+	 */
+	private static class WideStack {
+		private static final int INITIAL_CAPACITY = 64;
+
+		private long[] values = new long[INITIAL_CAPACITY];
+		private BigInteger[] bigs = new BigInteger[INITIAL_CAPACITY];
+		private int size = 0;
+
+		public void push(long value) {
+			if (size == values.length) {
+				grow();
+			}
+			bigs[size] = null;
+			values[size++] = value;
+		}
+
+		public void push(BigInteger value) {
+			if (value.bitLength() < Long.SIZE) {
+				push(value.longValue());
+				return;
+			}
+			if (size == values.length) {
+				grow();
+			}
+			bigs[size++] = value;
+		}
+
+		// pushes a heap value: a boxed Long or an out-of-range BigInteger
+		public void pushBoxed(Object value) {
+			if (value instanceof Long) {
+				push(((Long)value).longValue());
+			} else {
+				push((BigInteger)value);
+			}
+		}
+
+		public void require(int depth) {
+			if (size < depth) {
+				throw new IllegalStateException("Stack underflow");
+			}
+		}
+
+		// the top, for tracing: as a long, and as a BigInteger when it does not fit one
+		public long peekLong() {
+			return values[size - 1];
+		}
+
+		public BigInteger peekBig() {
+			return bigs[size - 1];
+		}
+
+		// whether the value depth from the top, 1 being the top, fits in a long
+		public boolean isLong(int depth) {
+			return bigs[size - depth] == null;
+		}
+
+		public long popLong() {
+			return values[--size];
+		}
+
+		public BigInteger popBig() {
+			final BigInteger big = bigs[--size];
+			if (big != null) {
+				bigs[size] = null;
+				return big;
+			}
+			return BigInteger.valueOf(values[size]);
+		}
+
+		public Object popBoxed() {
+			require(1);
+			final BigInteger big = bigs[--size];
+			if (big != null) {
+				bigs[size] = null;
+				return big;
+			}
+			return values[size];
+		}
+
+		public int popSign() {
+			final int sign = peekSign();
+			discard();
+			return sign;
+		}
+
+		public int peekSign() {
+			require(1);
+			final BigInteger big = bigs[size - 1];
+			return big != null ? big.signum() : Long.signum(values[size - 1]);
+		}
+
+		public void discard() {
+			require(1);
+			bigs[--size] = null;
+		}
+
+		// pushes a copy of the nth value from the top, where 0 is the top itself
+		public void copy(int index) {
+			if (index < 0 || index >= size) {
+				throw new IllegalStateException("Stack index " + index + " is out of range");
+			}
+			final int from = size - 1 - index;
+			if (bigs[from] != null) {
+				push(bigs[from]);
+			} else {
+				push(values[from]);
+			}
+		}
+
+		// discards n values beneath the top, or everything beneath it when n is out of range
+		public void slide(int itemCount) {
+			require(1);
+			final long top = values[size - 1];
+			final BigInteger bigTop = bigs[size - 1];
+			final int remaining = itemCount < 0 || itemCount >= size - 1 ? 0 : size - 1 - itemCount;
+			Arrays.fill(bigs, remaining, size, null);
+			size = remaining;
+			values[size] = top;
+			bigs[size++] = bigTop;
+		}
+
+		public void swap() {
+			require(2);
+			final long top = values[size - 1];
+			values[size - 1] = values[size - 2];
+			values[size - 2] = top;
+			final BigInteger bigTop = bigs[size - 1];
+			bigs[size - 1] = bigs[size - 2];
+			bigs[size - 2] = bigTop;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public WideStack fork() {
+			final WideStack copy = new WideStack();
+			final int capacity = Math.max(size, INITIAL_CAPACITY);
+			copy.values = Arrays.copyOf(values, capacity);
+			copy.bigs = Arrays.copyOf(bigs, capacity);
+			copy.size = size;
+			return copy;
+		}
+
+		// the longs in bulk, then each BigInteger by index
+		public void write(DataOutputStream out) throws IOException {
+			out.writeInt(size);
+			StateCodec.writeLongs(out, values, size);
+			int bigCount = 0;
+			for (int index = 0; index < size; index++) {
+				if (bigs[index] != null) {
+					++bigCount;
+				}
+			}
+			out.writeInt(bigCount);
+			for (int index = 0; index < size; index++) {
+				if (bigs[index] != null) {
+					out.writeInt(index);
+					StateCodec.writeBig(out, bigs[index]);
+				}
+			}
+		}
+
+		public static WideStack read(DataInputStream in) throws IOException {
+			final WideStack stack = new WideStack();
+			stack.size = StateCodec.readLength(in);
+			stack.values = StateCodec.readLongs(in, stack.size, INITIAL_CAPACITY);
+			stack.bigs = new BigInteger[stack.values.length];
+			for (int remaining = StateCodec.readLength(in); remaining > 0; remaining--) {
+				final int index = StateCodec.readLength(in);
+				if (index >= stack.size) {
+					throw new IllegalStateException("Corrupt checkpoint");
+				}
+				stack.bigs[index] = StateCodec.readBig(in);
+			}
+			return stack;
+		}
+
+		private void grow() {
+			values = Arrays.copyOf(values, size << 1);
+			bigs = Arrays.copyOf(bigs, size << 1);
+		}
+	}
+
+	/**
+	 * VM heap.  Addresses in [0, DENSE_LIMIT) live in lazily allocated int[]
+	 * pages, which covers the way nearly every program uses the heap as an
+	 * array.  Anything else (negative or far-flung addresses) goes to a
+	 * primitive open-addressing map.  Cells that were never stored read as
+	 * DEFAULT_VALUE.
+	 *
+	 * fork() shares every page with the copy, which clones a page only when
+	 * it first writes to it; the original must not be written again.
+	 */
+	private static class Heap {
+		private static final int DEFAULT_VALUE = 0;
+		private static final int PAGE_BITS = 10;
+		private static final int PAGE_SIZE = 1 << PAGE_BITS;
+		private static final int PAGE_MASK = PAGE_SIZE - 1;
+		private static final int DENSE_LIMIT = 1 << 22;
+
+		private int[][] pages = new int[16][];
+		private long[][] present = new long[16][];
+		private IntIntMap sparse = new IntIntMap();
+		private int cells = 0;
+		private boolean[] shared;		// pages still owned by the heap this was forked from; null if none
+
+		public int retrieve(int address) {
+			if (address >= 0 && address < DENSE_LIMIT) {
+				int pageIndex = address >>> PAGE_BITS;
+				if (pageIndex < pages.length && pages[pageIndex] != null) {
+					return pages[pageIndex][address & PAGE_MASK];
+				}
+				return DEFAULT_VALUE;
+			}
+			return sparse.get(address, DEFAULT_VALUE);
+		}
+
+		public void store(int address, int value) {
+			if (address >= 0 && address < DENSE_LIMIT) {
+				int pageIndex = address >>> PAGE_BITS;
+				int[] page = page(pageIndex);
+				int offset = address & PAGE_MASK;
+				long[] bits = present[pageIndex];
+				long mask = 1L << offset;
+				if ((bits[offset >>> 6] & mask) == 0) {
+					bits[offset >>> 6] |= mask;
+					++cells;
+				}
+				page[offset] = value;
+			} else if (sparse.put(address, value)) {
+				++cells;
+			}
+		}
+
+		// stores value at count consecutive addresses from start, which must not wrap
+		public void fill(int start, int count, int value) {
+			int address = start;
+			int remaining = count;
+			while (remaining > 0) {
+				final int run = denseRun(address, remaining);
+				if (run == 0) {
+					store(address++, value);
+					--remaining;
+					continue;
+				}
+				final int offset = address & PAGE_MASK;
+				Arrays.fill(page(address >>> PAGE_BITS), offset, offset + run, value);
+				markPresent(address >>> PAGE_BITS, offset, offset + run);
+				address += run;
+				remaining -= run;
+			}
+		}
+
+		// the same as storing retrieve(from + i) at to + i for i = 0, 1, ... count - 1 in turn
+		public void copy(int from, int to, int count) {
+			if (to > from && (long)to - from < count) {
+				// later reads see earlier writes, so no block copy will do
+				for (int index = 0; index < count; index++) {
+					store(to + index, retrieve(from + index));
+				}
+				return;
+			}
+			int source = from;
+			int target = to;
+			int remaining = count;
+			while (remaining > 0) {
+				final int run = Math.min(denseRun(source, remaining), denseRun(target, remaining));
+				if (run == 0) {
+					store(target++, retrieve(source++));
+					--remaining;
+					continue;
+				}
+				final int[] targetPage = page(target >>> PAGE_BITS);
+				final int[] sourcePage = source >>> PAGE_BITS < pages.length ? pages[source >>> PAGE_BITS] : null;
+				final int offset = target & PAGE_MASK;
+				if (sourcePage != null) {
+					System.arraycopy(sourcePage, source & PAGE_MASK, targetPage, offset, run);
+				} else {
+					Arrays.fill(targetPage, offset, offset + run, DEFAULT_VALUE);
+				}
+				markPresent(target >>> PAGE_BITS, offset, offset + run);
+				source += run;
+				target += run;
+				remaining -= run;
+			}
+		}
+
+		// cells from address on that lie in one dense page, at most count; 0 for sparse addresses
+		private static int denseRun(int address, int count) {
+			if (address < 0 || address >= DENSE_LIMIT) {
+				return 0;
+			}
+			return Math.min(count, PAGE_SIZE - (address & PAGE_MASK));
+		}
+
+		public Heap fork() {
+			final Heap copy = new Heap();
+			copy.pages = pages.clone();
+			copy.present = present.clone();
+			copy.sparse = sparse.copy();
+			copy.cells = cells;
+			copy.shared = new boolean[pages.length];
+			for (int pageIndex = 0; pageIndex < pages.length; pageIndex++) {
+				copy.shared[pageIndex] = pages[pageIndex] != null;
+			}
+			return copy;
+		}
+
+		// cells, then each allocated page whole, then the sparse cells
+		public void write(DataOutputStream out) throws IOException {
+			out.writeInt(cells);
+			int pageCount = 0;
+			for (int[] page : pages) {
+				if (page != null) {
+					++pageCount;
+				}
+			}
+			out.writeInt(pageCount);
+			for (int pageIndex = 0; pageIndex < pages.length; pageIndex++) {
+				if (pages[pageIndex] != null) {
+					out.writeInt(pageIndex);
+					StateCodec.writeLongs(out, present[pageIndex], PAGE_SIZE >>> 6);
+					StateCodec.writeInts(out, pages[pageIndex], PAGE_SIZE);
+				}
+			}
+			sparse.write(out);
+		}
+
+		public static Heap read(DataInputStream in) throws IOException {
+			final Heap heap = new Heap();
+			heap.cells = StateCodec.readLength(in);
+			for (int remaining = StateCodec.readLength(in); remaining > 0; remaining--) {
+				final int pageIndex = StateCodec.readLength(in);
+				if (pageIndex >= DENSE_LIMIT >>> PAGE_BITS) {
+					throw new IllegalStateException("Corrupt checkpoint");
+				}
+				heap.page(pageIndex);
+				heap.present[pageIndex] = StateCodec.readLongs(in, PAGE_SIZE >>> 6, 0);
+				heap.pages[pageIndex] = StateCodec.readInts(in, PAGE_SIZE, 0);
+			}
+			heap.sparse = IntIntMap.read(in);
+			return heap;
+		}
+
+		// the page to write to, allocated or unshared first as needed
+		private int[] page(int pageIndex) {
+			if (pageIndex >= pages.length) {
+				int length = Math.max(pageIndex + 1, pages.length << 1);
+				pages = Arrays.copyOf(pages, length);
+				present = Arrays.copyOf(present, length);
+				if (shared != null) {
+					shared = Arrays.copyOf(shared, length);
+				}
+			}
+			int[] page = pages[pageIndex];
+			if (page == null) {
+				page = pages[pageIndex] = new int[PAGE_SIZE];
+				present[pageIndex] = new long[PAGE_SIZE >>> 6];
+			} else if (shared != null && shared[pageIndex]) {
+				page = pages[pageIndex] = page.clone();
+				present[pageIndex] = present[pageIndex].clone();
+				shared[pageIndex] = false;
+			}
+			return page;
+		}
+
+		private void markPresent(int pageIndex, int from, int to) {
+			final long[] bits = present[pageIndex];
+			for (int offset = from; offset < to; ) {
+				final int word = offset >>> 6;
+				final int end = Math.min(to, (word + 1) << 6);
+				final long mask = (end - offset == 64 ? -1L : (1L << (end - offset)) - 1) << (offset & 63);
+				cells += Long.bitCount(mask & ~bits[word]);
+				bits[word] |= mask;
+				offset = end;
+			}
+		}
+
+		// number of distinct cells that have been stored to
+		public int size() {
+			return cells;
+		}
+	}
+
+	/**
+	 * Heap for NumericMode.UNBOUNDED, paged like Heap.  Dense cells hold
+	 * longs, with a BigInteger page allocated beside a page only once one of
+	 * its cells holds a value out of long range.  Other addresses, including
+	 * ones out of long range, are kept boxed in a map; values there are a
+	 * Long or a BigInteger, never both forms of the same number.
+	 */
+	private static class WideHeap {
+		private static final int PAGE_BITS = 10;
+		private static final int PAGE_SIZE = 1 << PAGE_BITS;
+		private static final int PAGE_MASK = PAGE_SIZE - 1;
+		private static final int DENSE_LIMIT = 1 << 22;
+
+		private long[][] pages = new long[16][];
+		private BigInteger[][] bigPages = new BigInteger[16][];
+		private long[][] present = new long[16][];
+		private Map<Object, Object> sparse = new HashMap<>();
+		private int cells = 0;
+		private boolean[] shared;		// as in Heap: pages the fork has not written yet
+
+		// pops value then address, as STORE does
+		public void store(WideStack stack) {
+			stack.require(2);
+			final Object value = stack.popBoxed();
+			if (stack.isLong(1)) {
+				store(stack.popLong(), value);
+			} else {
+				storeSparse(stack.popBig(), value);
+			}
+		}
+
+		public void storeAt(long address, WideStack stack) {
+			store(address, stack.popBoxed());
+		}
+
+		public void storeInput(WideStack stack, long value) {
+			store(stack, (Object)value);
+		}
+
+		// value is a Long, or a BigInteger out of long range
+		public void storeInput(WideStack stack, Object value) {
+			store(stack, value);
+		}
+
+		public void retrieve(WideStack stack) {
+			stack.require(1);
+			if (stack.isLong(1)) {
+				retrieveAt(stack.popLong(), stack);
+			} else {
+				final Object value = sparse.get(stack.popBig());
+				stack.pushBoxed(value != null ? value : 0L);
+			}
+		}
+
+		public void retrieveAt(long address, WideStack stack) {
+			if (address >= 0 && address < DENSE_LIMIT) {
+				final int pageIndex = (int)(address >>> PAGE_BITS);
+				final int offset = (int)address & PAGE_MASK;
+				if (pageIndex < pages.length && pages[pageIndex] != null) {
+					final BigInteger[] bigPage = bigPages[pageIndex];
+					if (bigPage != null && bigPage[offset] != null) {
+						stack.push(bigPage[offset]);
+					} else {
+						stack.push(pages[pageIndex][offset]);
+					}
+				} else {
+					stack.push(0L);
+				}
+				return;
+			}
+			final Object value = sparse.get(address);
+			stack.pushBoxed(value != null ? value : 0L);
+		}
+
+		// number of distinct cells that have been stored to
+		public int size() {
+			return cells;
+		}
+
+		// laid out like Heap.write(), with each page's BigIntegers after it
+		public void write(DataOutputStream out) throws IOException {
+			out.writeInt(cells);
+			int pageCount = 0;
+			for (long[] page : pages) {
+				if (page != null) {
+					++pageCount;
+				}
+			}
+			out.writeInt(pageCount);
+			for (int pageIndex = 0; pageIndex < pages.length; pageIndex++) {
+				if (pages[pageIndex] == null) {
+					continue;
+				}
+				out.writeInt(pageIndex);
+				StateCodec.writeLongs(out, present[pageIndex], PAGE_SIZE >>> 6);
+				StateCodec.writeLongs(out, pages[pageIndex], PAGE_SIZE);
+				final BigInteger[] bigPage = bigPages[pageIndex];
+				int bigCount = 0;
+				for (int offset = 0; bigPage != null && offset < PAGE_SIZE; offset++) {
+					if (bigPage[offset] != null) {
+						++bigCount;
+					}
+				}
+				out.writeInt(bigCount);
+				for (int offset = 0; bigCount > 0 && offset < PAGE_SIZE; offset++) {
+					if (bigPage[offset] != null) {
+						out.writeInt(offset);
+						StateCodec.writeBig(out, bigPage[offset]);
+					}
+				}
+			}
+			out.writeInt(sparse.size());
+			for (Map.Entry<Object, Object> cell : sparse.entrySet()) {
+				StateCodec.writeBoxed(out, cell.getKey());
+				StateCodec.writeBoxed(out, cell.getValue());
+			}
+		}
+
+		public static WideHeap read(DataInputStream in) throws IOException {
+			final WideHeap heap = new WideHeap();
+			heap.cells = StateCodec.readLength(in);
+			for (int remaining = StateCodec.readLength(in); remaining > 0; remaining--) {
+				final int pageIndex = StateCodec.readLength(in);
+				if (pageIndex >= DENSE_LIMIT >>> PAGE_BITS) {
+					throw new IllegalStateException("Corrupt checkpoint");
+				}
+				if (pageIndex >= heap.pages.length) {
+					final int length = Math.max(pageIndex + 1, heap.pages.length << 1);
+					heap.pages = Arrays.copyOf(heap.pages, length);
+					heap.bigPages = Arrays.copyOf(heap.bigPages, length);
+					heap.present = Arrays.copyOf(heap.present, length);
+				}
+				heap.present[pageIndex] = StateCodec.readLongs(in, PAGE_SIZE >>> 6, 0);
+				heap.pages[pageIndex] = StateCodec.readLongs(in, PAGE_SIZE, 0);
+				for (int bigs = StateCodec.readLength(in); bigs > 0; bigs--) {
+					final int offset = StateCodec.readLength(in);
+					if (offset >= PAGE_SIZE) {
+						throw new IllegalStateException("Corrupt checkpoint");
+					}
+					if (heap.bigPages[pageIndex] == null) {
+						heap.bigPages[pageIndex] = new BigInteger[PAGE_SIZE];
+					}
+					heap.bigPages[pageIndex][offset] = StateCodec.readBig(in);
+				}
+			}
+			for (int remaining = StateCodec.readLength(in); remaining > 0; remaining--) {
+				heap.sparse.put(StateCodec.readBoxed(in), StateCodec.readBoxed(in));
+			}
+			return heap;
+		}
+
+		// copy-on-write like Heap.fork(), with the same rule for the original
+		public WideHeap fork() {
+			final WideHeap copy = new WideHeap();
+			copy.pages = pages.clone();
+			copy.bigPages = bigPages.clone();
+			copy.present = present.clone();
+			copy.sparse = new HashMap<>(sparse);
+			copy.cells = cells;
+			copy.shared = new boolean[pages.length];
+			for (int pageIndex = 0; pageIndex < pages.length; pageIndex++) {
+				copy.shared[pageIndex] = pages[pageIndex] != null;
+			}
+			return copy;
+		}
+
+		private void store(WideStack stack, Object value) {
+			stack.require(1);
+			if (stack.isLong(1)) {
+				store(stack.popLong(), value);
+			} else {
+				storeSparse(stack.popBig(), value);
+			}
+		}
+
+		private void store(long address, Object value) {
+			if (address < 0 || address >= DENSE_LIMIT) {
+				storeSparse(address, value);
+				return;
+			}
+			final int pageIndex = (int)(address >>> PAGE_BITS);
+			if (pageIndex >= pages.length) {
+				final int length = Math.max(pageIndex + 1, pages.length << 1);
+				pages = Arrays.copyOf(pages, length);
+				bigPages = Arrays.copyOf(bigPages, length);
+				present = Arrays.copyOf(present, length);
+				if (shared != null) {
+					shared = Arrays.copyOf(shared, length);
+				}
+			}
+			long[] page = pages[pageIndex];
+			if (page == null) {
+				page = pages[pageIndex] = new long[PAGE_SIZE];
+				present[pageIndex] = new long[PAGE_SIZE >>> 6];
+			} else if (shared != null && shared[pageIndex]) {
+				page = pages[pageIndex] = page.clone();
+				present[pageIndex] = present[pageIndex].clone();
+				if (bigPages[pageIndex] != null) {
+					bigPages[pageIndex] = bigPages[pageIndex].clone();
+				}
+				shared[pageIndex] = false;
+			}
+			final int offset = (int)address & PAGE_MASK;
+			final long[] bits = present[pageIndex];
+			final long mask = 1L << offset;
+			if ((bits[offset >>> 6] & mask) == 0) {
+				bits[offset >>> 6] |= mask;
+				++cells;
+			}
+			if (value instanceof Long) {
+				page[offset] = (Long)value;
+				if (bigPages[pageIndex] != null) {
+					bigPages[pageIndex][offset] = null;
+				}
+			} else {
+				if (bigPages[pageIndex] == null) {
+					bigPages[pageIndex] = new BigInteger[PAGE_SIZE];
+				}
+				bigPages[pageIndex][offset] = (BigInteger)value;
+			}
+		}
+
+		private void storeSparse(Object address, Object value) {
+			if (sparse.put(address, value) == null) {
+				++cells;
+			}
+		}
+	}
+
+	/**
+	 * Open-addressing int to int map with linear probing.  Only what the heap
+	 * needs: no removal, no iteration.
+	 */
+	private static class IntIntMap {
+		private int[] keys = new int[16];
+		private int[] values = new int[16];
+		private boolean[] used = new boolean[16];
+		private int size = 0;
+
+		public int get(int key, int defaultValue) {
+			int mask = keys.length - 1;
+			for (int slot = hash(key) & mask; used[slot]; slot = (slot + 1) & mask) {
+				if (keys[slot] == key) {
+					return values[slot];
+				}
+			}
+			return defaultValue;
+		}
+
+		// returns true when the key was not previously present
+		public boolean put(int key, int value) {
+			int mask = keys.length - 1;
+			int slot = hash(key) & mask;
+			for (; used[slot]; slot = (slot + 1) & mask) {
+				if (keys[slot] == key) {
+					values[slot] = value;
+					return false;
+				}
+			}
+			used[slot] = true;
+			keys[slot] = key;
+			values[slot] = value;
+			if (++size << 1 > keys.length) {
+				rehash();
+			}
+			return true;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			out.writeInt(size);
+			for (int slot = 0; slot < keys.length; slot++) {
+				if (used[slot]) {
+					out.writeInt(keys[slot]);
+					out.writeInt(values[slot]);
+				}
+			}
+		}
+
+		public static IntIntMap read(DataInputStream in) throws IOException {
+			final IntIntMap map = new IntIntMap();
+			for (int remaining = StateCodec.readLength(in); remaining > 0; remaining--) {
+				map.put(in.readInt(), in.readInt());
+			}
+			return map;
+		}
+
+		public IntIntMap copy() {
+			final IntIntMap copy = new IntIntMap();
+			copy.keys = keys.clone();
+			copy.values = values.clone();
+			copy.used = used.clone();
+			copy.size = size;
+			return copy;
+		}
+
+		private void rehash() {
+			final int[] oldKeys = keys;
+			final int[] oldValues = values;
+			final boolean[] oldUsed = used;
+			keys = new int[oldKeys.length << 1];
+			values = new int[oldKeys.length << 1];
+			used = new boolean[oldKeys.length << 1];
+			int mask = keys.length - 1;
+			for (int index = 0; index < oldKeys.length; index++) {
+				if (oldUsed[index]) {
+					int slot = hash(oldKeys[index]) & mask;
+					while (used[slot]) {
+						slot = (slot + 1) & mask;
+					}
+					used[slot] = true;
+					keys[slot] = oldKeys[index];
+					values[slot] = oldValues[index];
+				}
+			}
+		}
+
+		private static int hash(int key) {
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+
+	// bulk big-endian encoding of VM state for checkpoints
+	private static final class StateCodec {
+		private StateCodec() {
+		}
+
+		static void writeInts(DataOutputStream out, int[] values, int length) throws IOException {
+			final ByteBuffer bytes = ByteBuffer.allocate(length * Integer.BYTES);
+			bytes.asIntBuffer().put(values, 0, length);
+			out.write(bytes.array());
+		}
+
+		// the array is at least capacity long, with the values at its start
+		static int[] readInts(DataInputStream in, int length, int capacity) throws IOException {
+			final byte[] bytes = new byte[length * Integer.BYTES];
+			in.readFully(bytes);
+			final int[] values = new int[Math.max(length, capacity)];
+			ByteBuffer.wrap(bytes).asIntBuffer().get(values, 0, length);
+			return values;
+		}
+
+		static void writeLongs(DataOutputStream out, long[] values, int length) throws IOException {
+			final ByteBuffer bytes = ByteBuffer.allocate(length * Long.BYTES);
+			bytes.asLongBuffer().put(values, 0, length);
+			out.write(bytes.array());
+		}
+
+		static long[] readLongs(DataInputStream in, int length, int capacity) throws IOException {
+			final byte[] bytes = new byte[length * Long.BYTES];
+			in.readFully(bytes);
+			final long[] values = new long[Math.max(length, capacity)];
+			ByteBuffer.wrap(bytes).asLongBuffer().get(values, 0, length);
+			return values;
+		}
+
+		static void writeBig(DataOutputStream out, BigInteger value) throws IOException {
+			final byte[] bytes = value.toByteArray();
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		static BigInteger readBig(DataInputStream in) throws IOException {
+			final byte[] bytes = new byte[readLength(in)];
+			in.readFully(bytes);
+			return new BigInteger(bytes);
+		}
+
+		// a wide heap address or value: a Long or a BigInteger out of long range
+		static void writeBoxed(DataOutputStream out, Object value) throws IOException {
+			if (value instanceof Long) {
+				out.writeByte(0);
+				out.writeLong((Long)value);
+			} else {
+				out.writeByte(1);
+				writeBig(out, (BigInteger)value);
+			}
+		}
+
+		static Object readBoxed(DataInputStream in) throws IOException {
+			return in.readByte() == 0 ? (Object)in.readLong() : readBig(in);
+		}
+
+		static int readLength(DataInputStream in) throws IOException {
+			final int length = in.readInt();
+			if (length < 0) {
+				throw new IllegalStateException("Corrupt checkpoint");
+			}
+			return length;
+		}
+	}
+
+	private static class Label {
+		private final String label;
+		private final int ip;
+
+		public Label(String label, int ip) {
+			this.label = label;
+			this.ip = ip;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public int getIp() {
+			return ip;
+		}
+	}
+	
+	/**
+	 * The instruction characters of a program's source, read one at a time.
+	 * Anything other than space, tab and LF is skipped as it is read, so the
+	 * source is never copied or reduced up front.  Reading past the end
+	 * raises EndOfCodeException.
+	 */
+	private abstract static class CodeSource implements ICode {
+		protected static final int CHUNK_SIZE = 8192;
+
+		private int next = -1;
+		private boolean empty = true;
+		
+		// next raw character of the source, or -1 at its end
+		protected abstract int read();
+
+		// SHA-256 of the source text in hex, once it has been read to the end
+		protected abstract String hash();
+		
+		@Override
+		public char nextOpCode() {
+			if (isCompleted()) {
+				throw new EndOfCodeException();
+			}
+			final int ch = next;
+			next = -1;
+			return ch == ' ' ? SPACE : ch == '\t' ? TAB : LF;
+		}
+
+		@Override
+		public boolean isCompleted() {
+			while (next < 0) {
+				final int ch = read();
+				if (ch < 0) {
+					return true;
+				}
+				empty = false;
+				if (ch == ' ' || ch == '\t' || ch == '\n') {
+					next = ch;
+				}
+			}
+			return false;
+		}
+		
+		// true if the source had no characters at all, whitespace or not
+		public boolean isEmpty() {
+			return empty;
+		}
+	}
+
+	private static class StringSource extends CodeSource {
+		private final String code;
+		private String hash;
+		private int index = 0;
+
+		// a null hash is only computed if it is asked for
+		public StringSource(String code, String hash) {
+			this.code = code;
+			this.hash = hash;
+		}
+
+		@Override
+		protected int read() {
+			return index < code.length() ? code.charAt(index++) : -1;
+		}
+
+		@Override
+		protected String hash() {
+			if (hash == null) {
+				hash = ProgramCache.hash(code);
+			}
+			return hash;
+		}
+	}
+
+	/**
+	 * Source bytes from a stream or a mapped file.  Space, tab and LF are
+	 * single bytes in any ASCII-compatible encoding and never occur inside a
+	 * UTF-8 multi-byte sequence, so the bytes are filtered without decoding.
+	 * The hash is taken over the raw bytes, which matches hashing the decoded
+	 * String when the source is UTF-8.
+	 */
+	private static class ByteSource extends CodeSource {
+		private final InputStream input;
+		private final byte[] chunk;
+		private final MessageDigest digest = ProgramCache.newDigest();
+		private final ByteBuffer mapped;
+		private ByteBuffer buffer;
+
+		public ByteSource(InputStream input) {
+			this.input = input;
+			this.chunk = new byte[CHUNK_SIZE];
+			this.mapped = null;
+			this.buffer = ByteBuffer.wrap(chunk, 0, 0);
+		}
+
+		// a mapped file is only hashed when the hash is asked for, in one pass
+		public ByteSource(ByteBuffer mapped) {
+			this.input = null;
+			this.chunk = null;
+			this.mapped = mapped.duplicate();
+			this.buffer = mapped;
+		}
+
+		@Override
+		protected int read() {
+			while (!buffer.hasRemaining()) {
+				if (input == null) {
+					return -1;
+				}
+				final int count;
+				try {
+					count = input.read(chunk);
+				} catch (IOException ex) {
+					throw new IllegalStateException("Error reading program source", ex);
+				}
+				if (count < 0) {
+					return -1;
+				}
+				digest.update(chunk, 0, count);
+				buffer.clear().limit(count);
+			}
+			return buffer.get() & 0xFF;
+		}
+
+		@Override
+		protected String hash() {
+			if (mapped != null) {
+				digest.update(mapped.duplicate());
+			}
+			return ProgramCache.hex(digest);
+		}
+	}
+
+	/**
+	 * Source characters from a Reader.  Each chunk is re-encoded as UTF-8
+	 * into a reused buffer purely to feed the hash, so a program loaded this
+	 * way hashes the same as its String.
+	 */
+	private static class ReaderSource extends CodeSource {
+		private final Reader reader;
+		private final char[] chunk = new char[CHUNK_SIZE + 1];	// room to complete a surrogate pair
+		private final CharBuffer chars = CharBuffer.wrap(chunk);
+		private final ByteBuffer encoded = ByteBuffer.allocate((CHUNK_SIZE + 1) * 3);
+		private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final MessageDigest digest = ProgramCache.newDigest();
+		private int count = 0;
+		private int index = 0;
+
+		public ReaderSource(Reader reader) {
+			this.reader = reader;
+		}
+
+		@Override
+		protected int read() {
+			if (index == count && !fill()) {
+				return -1;
+			}
+			return chunk[index++];
+		}
+
+		private boolean fill() {
+			try {
+				count = reader.read(chunk, 0, CHUNK_SIZE);
+				if (count <= 0) {
+					count = 0;
+					return false;
+				}
+				if (Character.isHighSurrogate(chunk[count - 1])) {
+					final int low = reader.read();
+					if (low >= 0) {
+						chunk[count++] = (char)low;
+					}
+				}
+			} catch (IOException ex) {
+				throw new IllegalStateException("Error reading program source", ex);
+			}
+			index = 0;
+			chars.clear().limit(count);
+			encoded.clear();
+			encoder.reset();
+			encoder.encode(chars, encoded, true);
+			encoder.flush(encoded);
+			digest.update(encoded.flip());
+			return true;
+		}
+
+		@Override
+		protected String hash() {
+			return ProgramCache.hex(digest);
+		}
+	}
+
+	private static class CodeScanner implements ICode {
+		private static final String PAST_END = "Request for opcode beyond code boundaries";
+
+		private final ICode source;
+		private final List<Instruction> instructions = new ArrayList<>();
+		private final Map<String, Label> labels = new HashMap<>();
+		
+		public CodeScanner(ICode source) {
+			this.source = source;
+		}
+		
+		@Override
+		public char nextOpCode() {
+			return source.nextOpCode();
+		}
+
+		@Override
+		public boolean isCompleted() {
+			return source.isCompleted();
+		}
+
+		/**
+		 * Decodes the whole program into instructions, recording label
+		 * declarations against the index of the instruction that follows them,
+		 * then resolves every call and jump to its target index.  A program
+		 * that is cut off mid-instruction decodes as far as it can and ends with
+		 * an instruction that fails if it is ever reached.  Duplicated and
+		 * undefined labels are rejected here rather than when first jumped to.
+		 */
+		public Instruction[] decode() {
+			try {
+				while (!isCompleted()) {
+					Instruction instruction = decodeInstruction();
+					if (instruction != null) {
+						instructions.add(instruction);
+					}
+				}
+			} catch (EndOfCodeException ex) {
+				instructions.add(Instruction.invalid(PAST_END));
+			}
+
+			final Instruction[] decoded = instructions.toArray(new Instruction[0]);
+			for (int index = 0; index < decoded.length; index++) {
+				final String label = decoded[index].getLabel();
+				if (label != null) {
+					decoded[index] = decoded[index].resolve(resolveLabel(decoded[index].getOpCode(), label));
+				}
+			}
+			return decoded;
+		}
+
+		private int resolveLabel(OpCode opCode, String label) {
+			final Label match = labels.get(label);
+			if (match == null) {
+				throw new IllegalStateException(undefinedLabel(opCode, label));
+			}
+			return match.getIp();
+		}
+
+		static String undefinedLabel(OpCode opCode, String label) {
+			if (opCode == OpCode.CALL) {
+				return "Calling non-existent subroutine at " + label;
+			}
+			return "Calling non-existent jump at " + label;
+		}
+
+		public Map<String, Label> extractLabels() {
+			return labels;
+		}
+
+		// index the next decoded instruction will have, which labels declared now point at
+		protected int nextIndex() {
+			return instructions.size();
+		}
+
+		// the next instruction, or null for a label declaration
+		Instruction decodeInstruction() {
+			char imp = nextOpCode();
+			char second = nextOpCode();
+			if (imp == SPACE) {
+				if (second == SPACE) {
+					return push(extractNumber(this));
+				} else if (second == TAB) {
+					char third = nextOpCode();
+					if (third == SPACE) {
+						return Instruction.withOperand(OpCode.DUPLICATE_NTH, stackOperand(extractNumber(this)));
+					} else if (third == LF) {
+						return Instruction.withOperand(OpCode.SLIDE, stackOperand(extractNumber(this)));
+					}
+					return Instruction.invalid("SPACE TAB TAB is invalid IMP sequence");
+				} else {
+					char third = nextOpCode();
+					if (third == SPACE) {
+						return Instruction.of(OpCode.DUPLICATE);
+					} else if (third == LF) {
+						return Instruction.of(OpCode.DISCARD);
+					}
+					return Instruction.of(OpCode.SWAP);
+				}
+			} else if (imp == TAB) {
+				char third = nextOpCode();
+				if (second == SPACE) {
+					if (third == SPACE) {
+						char fourth = nextOpCode();
+						if (fourth == SPACE) {
+							return Instruction.of(OpCode.ADD);
+						} else if (fourth == TAB) {
+							return Instruction.of(OpCode.SUBTRACT);
+						}
+						return Instruction.of(OpCode.MULTIPLY);
+					} else if (third == TAB) {
+						char fourth = nextOpCode();
+						if (fourth == SPACE) {
+							return Instruction.of(OpCode.DIVIDE);
+						} else if (fourth == TAB) {
+							return Instruction.of(OpCode.MODULO);
+						}
+						return Instruction.invalid("TAB SPACE TAB LF is invalid IMP sequence");
+					}
+					return Instruction.invalid("TAB SPACE LF is invalid IMP sequence");
+				} else if (second == TAB) {
+					if (third == SPACE) {
+						return Instruction.of(OpCode.STORE);
+					} else if (third == TAB) {
+						return Instruction.of(OpCode.RETRIEVE);
+					}
+					return Instruction.invalid("TAB TAB LF is invalid IMP sequence");
+				} else {		// LF
+					if (third == LF) {
+						return Instruction.invalid("TAB LF LF is invalid IMP sequence");
+					}
+					char fourth = nextOpCode();
+					if (third == SPACE) {
+						if (fourth == SPACE) {
+							return Instruction.of(OpCode.OUTPUT_CHAR);
+						} else if (fourth == TAB) {
+							return Instruction.of(OpCode.OUTPUT_NUMBER);
+						}
+						return Instruction.invalid("TAB LF SPACE LF is invalid IMP sequence");
+					}
+					if (fourth == SPACE) {
+						return Instruction.of(OpCode.READ_CHAR);
+					} else if (fourth == TAB) {
+						return Instruction.of(OpCode.READ_NUMBER);
+					}
+					return Instruction.invalid("TAB LF TAB LF is invalid IMP sequence");
+				}
+			} else {	// LF
+				char third = nextOpCode();
+				if (second == SPACE) {
+					String label = extractLabel(this);
+					if (third == SPACE) {
+						if (labels.containsKey(label)) {
+							throw new IllegalStateException("Duplicated label found for " + label);
+						}
+						labels.put(label, new Label(label, nextIndex()));
+						return null;
+					} else if (third == TAB) {
+						return Instruction.withLabel(OpCode.CALL, label);
+					}
+					return Instruction.withLabel(OpCode.JUMP, label);
+				} else if (second == TAB) {
+					if (third == SPACE) {
+						return Instruction.withLabel(OpCode.JUMP_ZERO, extractLabel(this));
+					} else if (third == TAB) {
+						return Instruction.withLabel(OpCode.JUMP_NEGATIVE, extractLabel(this));
+					}
+					return Instruction.of(OpCode.RETURN);
+				} else {		// LF
+					if (third == LF) {
+						return Instruction.of(OpCode.END);
+					} else if (third == SPACE) {
+						return Instruction.invalid("LF LF SPACE is invalid IMP sequence");
+					}
+					return Instruction.invalid("LF LF TAB is invalid IMP sequence");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rewrites common decoded idioms into fewer instructions:
+	 *   push c; push d; add/sub/mul/div/mod  =>  push (c op d)   (only when exact in an int)
+	 *   push c; add / push c; sub            =>  add-immediate
+	 *   dup; jz L                            =>  jz L without consuming the top
+	 *   push a; retrieve                     =>  retrieve from a
+	 *   push a; swap; store                  =>  store top at a
+	 * Nothing is fused across a branch target or return site, so control can
+	 * never land in the middle of a superinstruction.  Every rewrite fails with
+	 * the same exception the original sequence would have.
+	 */
+	private static class PeepholeOptimizer {
+		private final Instruction[] instructions;
+		private final boolean[] entries;
+		private final int[] indexes;
+		private final List<Instruction> optimized = new ArrayList<>();
+		private final List<Boolean> entryPoints = new ArrayList<>();
+
+		// for instructions appended one at a time, see LazyLoader
+		public PeepholeOptimizer() {
+			this(new Instruction[0]);
+		}
+
+		public PeepholeOptimizer(Instruction[] instructions) {
+			this.instructions = instructions;
+			this.entries = new boolean[instructions.length + 1];
+			this.indexes = new int[instructions.length + 1];
+			for (int index = 0; index < instructions.length; index++) {
+				final Instruction instruction = instructions[index];
+				if (instruction.isBranch()) {
+					entries[instruction.getTarget()] = true;
+				}
+				if (instruction.getOpCode() == OpCode.CALL) {
+					entries[index + 1] = true;
+				}
+			}
+		}
+
+		public Instruction[] optimize() {
+			for (int index = 0; index < instructions.length; index++) {
+				indexes[index] = optimized.size();
+				if (!append(instructions[index], entries[index])) {
+					// folded into the instruction now at the end of the list
+					indexes[index] = optimized.size() - 1;
+				}
+			}
+			indexes[instructions.length] = optimized.size();
+
+			final Instruction[] result = optimized.toArray(new Instruction[0]);
+			for (int index = 0; index < result.length; index++) {
+				if (result[index].isBranch()) {
+					result[index] = result[index].resolve(indexes[result[index].getTarget()]);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Adds the next decoded instruction, fusing it into the ones before it
+		 * unless control can enter at it.  Returns false if it was fused.  A
+		 * fusion rewrites the last instruction and at most the one before it,
+		 * but folds chain: each turns two pushes into one, so a run of pushes
+		 * at the end of the list can be folded away back to its first.
+		 */
+		public boolean append(Instruction instruction, boolean entry) {
+			if (!entry && fuse(instruction)) {
+				return false;
+			}
+			optimized.add(instruction);
+			entryPoints.add(entry);
+			return true;
+		}
+
+		public int size() {
+			return optimized.size();
+		}
+
+		public Instruction get(int index) {
+			return optimized.get(index);
+		}
+
+		// index in the optimized program of an instruction from the decoded one
+		public int remap(int index) {
+			return indexes[index];
+		}
+
+		private boolean fuse(Instruction instruction) {
+			final Instruction last = peek(1);
+			if (last == null) {
+				return false;
+			}
+			final OpCode opCode = instruction.getOpCode();
+			if (isFoldable(opCode) && last.getOpCode() == OpCode.PUSH) {
+				final Instruction first = peek(2);
+				if (first != null && first.getOpCode() == OpCode.PUSH && !isEntry(1)
+						&& (last.getOperand() != 0 || (opCode != OpCode.DIVIDE && opCode != OpCode.MODULO))) {
+					// folding must not wrap, or UNBOUNDED runs would see the int result
+					final long folded = fold(opCode, first.getOperand(), last.getOperand());
+					if (folded == (int)folded) {
+						replace(2, Instruction.withOperand(OpCode.PUSH, (int)folded));
+						return true;
+					}
+				}
+				if (opCode == OpCode.ADD) {
+					replace(1, Instruction.withOperand(OpCode.ADD_IMMEDIATE, last.getOperand()));
+					return true;
+				}
+				if (opCode == OpCode.SUBTRACT && last.getOperand() != Integer.MIN_VALUE) {
+					replace(1, Instruction.withOperand(OpCode.ADD_IMMEDIATE, -last.getOperand()));
+					return true;
+				}
+			} else if (opCode == OpCode.JUMP_ZERO && last.getOpCode() == OpCode.DUPLICATE) {
+				replace(1, Instruction.withTarget(OpCode.DUPLICATE_JUMP_ZERO, instruction.getLabel(), instruction.getTarget()));
+				return true;
+			} else if (opCode == OpCode.RETRIEVE && last.getOpCode() == OpCode.PUSH) {
+				replace(1, Instruction.withOperand(OpCode.RETRIEVE_AT, last.getOperand()));
+				return true;
+			} else if (opCode == OpCode.STORE && last.getOpCode() == OpCode.SWAP) {
+				final Instruction first = peek(2);
+				if (first != null && first.getOpCode() == OpCode.PUSH && !isEntry(1)) {
+					replace(2, Instruction.withOperand(OpCode.STORE_AT, first.getOperand()));
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private static boolean isFoldable(OpCode opCode) {
+			return opCode == OpCode.ADD || opCode == OpCode.SUBTRACT || opCode == OpCode.MULTIPLY
+					|| opCode == OpCode.DIVIDE || opCode == OpCode.MODULO;
+		}
+
+		// exact result; none of these can overflow a long
+		private static long fold(OpCode opCode, long left, long right) {
+			switch (opCode) {
+			case ADD:
+				return left + right;
+			case SUBTRACT:
+				return left - right;
+			case MULTIPLY:
+				return left * right;
+			case DIVIDE:
+				return Math.floorDiv(left, right);
+			default:
+				return Math.floorMod(left, right);
+			}
+		}
+
+		// nth instruction from the end of the optimized list, 1 being the last
+		private Instruction peek(int depth) {
+			int index = optimized.size() - depth;
+			return index >= 0 ? optimized.get(index) : null;
+		}
+
+		private boolean isEntry(int depth) {
+			return entryPoints.get(optimized.size() - depth);
+		}
+
+		// replaces the last count instructions, keeping whether the first was a branch target
+		private void replace(int count, Instruction instruction) {
+			final boolean entry = isEntry(count);
+			for (int removed = 0; removed < count; removed++) {
+				optimized.remove(optimized.size() - 1);
+				entryPoints.remove(entryPoints.size() - 1);
+			}
+			optimized.add(instruction);
+			entryPoints.add(entry);
+		}
+	}
+
+	/**
+	 * Load-time stack-effect analysis.  A forward pass over the optimized
+	 * program computes, for every instruction, a lower bound on the depth of
+	 * the operand stack it starts from; where control flow joins, the bound is
+	 * the smaller of the two.  Calls are taken context-insensitively: a
+	 * subroutine starts from its shallowest call site, and every return site
+	 * resumes from the shallowest depth any RETURN is reached with.  Where the
+	 * bound covers what an instruction pops, it can never underflow.
+	 *
+	 * verify() also follows the path every run takes from the first
+	 * instruction, until the first branch, call, I/O or other possible
+	 * failure.  An underflow on that path is certain, and nothing visible
+	 * happens before it, so the program is rejected instead of loaded.
+	 */
+	private static class StackVerifier {
+		private static final int UNREACHED = Integer.MAX_VALUE;
+		private static final int NEVER = Integer.MAX_VALUE;		// requirement of an instruction that always fails
+
+		private final Instruction[] instructions;
+		private final int[] depths;
+		private final boolean[] queued;
+		private final Deque<Integer> pending = new ArrayDeque<>();
+		private final List<Integer> callSites = new ArrayList<>();
+		private final boolean[] called;
+		private int returnDepth = UNREACHED;
+
+		public StackVerifier(Instruction[] instructions) {
+			this.instructions = instructions;
+			this.depths = new int[instructions.length];
+			this.queued = new boolean[instructions.length];
+			this.called = new boolean[instructions.length];
+			Arrays.fill(depths, UNREACHED);
+		}
+
+		// lower bound on the stack depth each instruction starts from; unreachable ones get Integer.MAX_VALUE
+		public int[] verify() {
+			checkEntryPath();
+			merge(0, 0);
+			while (!pending.isEmpty()) {
+				final int ip = pending.poll();
+				queued[ip] = false;
+				propagate(ip, depths[ip]);
+			}
+			return depths;
+		}
+
+		// the fewest values an instruction needs on the stack to run
+		public static int required(Instruction instruction) {
+			switch (instruction.getOpCode()) {
+			case DUPLICATE_NTH: {
+				final int nth = instruction.getOperand();
+				return nth < 0 || nth == Integer.MAX_VALUE ? NEVER : nth + 1;
+			}
+			case SWAP:
+			case ADD:
+			case SUBTRACT:
+			case MULTIPLY:
+			case DIVIDE:
+			case MODULO:
+			case STORE:
+				return 2;
+			case SLIDE:
+			case DUPLICATE:
+			case DISCARD:
+			case RETRIEVE:
+			case OUTPUT_CHAR:
+			case OUTPUT_NUMBER:
+			case READ_CHAR:
+			case READ_NUMBER:
+			case JUMP_ZERO:
+			case JUMP_NEGATIVE:
+			case ADD_IMMEDIATE:
+			case STORE_AT:
+			case DUPLICATE_JUMP_ZERO:
+				return 1;
+			default:
+				return 0;
+			}
+		}
+
+		// depth after an instruction that started from depth and did not fail
+		private static int after(Instruction instruction, int depth) {
+			switch (instruction.getOpCode()) {
+			case PUSH:
+			case PUSH_WIDE:
+			case DUPLICATE_NTH:
+			case DUPLICATE:
+			case RETRIEVE_AT:
+				return depth + 1;
+			case SLIDE: {
+				final int operand = instruction.getOperand();
+				final int below = Math.max(depth, 1) - 1;
+				return (operand < 0 || operand >= below ? 0 : below - operand) + 1;
+			}
+			case SWAP:
+			case RETRIEVE:
+			case ADD_IMMEDIATE:
+			case DUPLICATE_JUMP_ZERO:
+				return depth;
+			case STORE:
+				return Math.max(depth, 2) - 2;
+			case ADD:
+			case SUBTRACT:
+			case MULTIPLY:
+			case DIVIDE:
+			case MODULO:
+				return Math.max(depth, 2) - 1;
+			case DISCARD:
+			case OUTPUT_CHAR:
+			case OUTPUT_NUMBER:
+			case READ_CHAR:
+			case READ_NUMBER:
+			case JUMP_ZERO:
+			case JUMP_NEGATIVE:
+			case STORE_AT:
+				return Math.max(depth, 1) - 1;
+			default:
+				return depth;
+			}
+		}
+
+		private void propagate(int ip, int depth) {
+			final Instruction instruction = instructions[ip];
+			if (required(instruction) == NEVER) {
+				return;
+			}
+			final int next = after(instruction, depth);
+			switch (instruction.getOpCode()) {
+			case END:
+			case INVALID:
+				return;
+			case JUMP:
+				merge(instruction.getTarget(), next);
+				return;
+			case JUMP_ZERO:
+			case JUMP_NEGATIVE:
+			case DUPLICATE_JUMP_ZERO:
+				merge(instruction.getTarget(), next);
+				break;
+			case CALL:
+				merge(instruction.getTarget(), next);
+				if (!called[ip]) {
+					called[ip] = true;
+					callSites.add(ip);
+				}
+				merge(ip + 1, returnDepth);
+				return;
+			case RETURN:
+				if (depth < returnDepth) {
+					returnDepth = depth;
+					for (int site : callSites) {
+						merge(site + 1, depth);
+					}
+				}
+				return;
+			default:
+				break;
+			}
+			merge(ip + 1, next);
+		}
+
+		private void merge(int ip, int depth) {
+			if (ip >= instructions.length || depth >= depths[ip]) {
+				return;
+			}
+			depths[ip] = depth;
+			if (!queued[ip]) {
+				queued[ip] = true;
+				pending.add(ip);
+			}
+		}
+
+		private void checkEntryPath() {
+			final boolean[] seen = new boolean[instructions.length];
+			int depth = 0;
+			int ip = 0;
+			while (ip < instructions.length && !seen[ip]) {
+				seen[ip] = true;
+				final Instruction instruction = instructions[ip];
+				switch (instruction.getOpCode()) {
+				case PUSH:
+				case SLIDE:
+				case DUPLICATE:
+				case DISCARD:
+				case SWAP:
+				case ADD:
+				case SUBTRACT:
+				case MULTIPLY:
+				case STORE:
+				case RETRIEVE:
+				case ADD_IMMEDIATE:
+				case RETRIEVE_AT:
+				case STORE_AT: {
+					final int required = required(instruction);
+					if (depth < required) {
+						throw new IllegalStateException("Stack underflow: " + instruction.getOpCode() + " needs "
+								+ required + " value" + (required == 1 ? "" : "s") + " but always runs on a stack of " + depth);
+					}
+					depth = after(instruction, depth);
+					++ip;
+					break;
+				}
+				case JUMP:
+					ip = instruction.getTarget();
+					break;
+				default:
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the loop shapes generated programs spend most of their time in
+	 * and marks each loop's first instruction, in a copy of the opcode table,
+	 * with an Op that runs the whole loop at once.  Shapes are matched on the
+	 * optimized program, where "push 1; add" is already one ADD_IMMEDIATE:
+	 *
+	 *   print string   L: dup; retrieve; dup; jz E; printc; push 1; add; jmp L
+	 *   fill           L: dup; push n; sub; jz E; dup; push b; add; push v; store;
+	 *                     push 1; add; jmp L
+	 *   copy           L: dup; push n; sub; jz E; dup; push b; add; copy 1; push a; add;
+	 *                     retrieve; store; push 1; add; jmp L
+	 *
+	 * The loop's own instructions stay where they were, so a jump into the
+	 * middle of one still works, and the engine can fall back to them when a
+	 * fill or copy would wrap around.
+	 */
+	private static class IdiomRecognizer {
+		private static final OpCode[] PRINT_STRING = { OpCode.DUPLICATE, OpCode.RETRIEVE, OpCode.DUPLICATE_JUMP_ZERO,
+				OpCode.OUTPUT_CHAR, OpCode.ADD_IMMEDIATE, OpCode.JUMP };
+		private static final OpCode[] FILL = { OpCode.DUPLICATE, OpCode.ADD_IMMEDIATE, OpCode.JUMP_ZERO,
+				OpCode.DUPLICATE, OpCode.ADD_IMMEDIATE, OpCode.PUSH, OpCode.STORE, OpCode.ADD_IMMEDIATE, OpCode.JUMP };
+		private static final OpCode[] COPY = { OpCode.DUPLICATE, OpCode.ADD_IMMEDIATE, OpCode.JUMP_ZERO,
+				OpCode.DUPLICATE, OpCode.ADD_IMMEDIATE, OpCode.DUPLICATE_NTH, OpCode.ADD_IMMEDIATE, OpCode.RETRIEVE,
+				OpCode.STORE, OpCode.ADD_IMMEDIATE, OpCode.JUMP };
+
+		private final Instruction[] instructions;
+
+		public IdiomRecognizer(Instruction[] instructions) {
+			this.instructions = instructions;
+		}
+
+		// opCodes with every recognized loop head replaced by its idiom
+		public int[] recognize(int[] opCodes) {
+			final int[] idioms = opCodes.clone();
+			for (int head = 0; head < instructions.length; head++) {
+				if (matches(head, PRINT_STRING) && instructions[head + 4].getOperand() == 1) {
+					idioms[head] = Op.PRINT_STRING;
+				} else if (matches(head, FILL) && instructions[head + 7].getOperand() == 1) {
+					idioms[head] = Op.FILL;
+				} else if (matches(head, COPY) && instructions[head + 5].getOperand() == 1
+						&& instructions[head + 9].getOperand() == 1) {
+					idioms[head] = Op.COPY;
+				}
+			}
+			return idioms;
+		}
+
+		// the shape starts at head and its closing jump goes back there
+		private boolean matches(int head, OpCode[] shape) {
+			if (head + shape.length > instructions.length) {
+				return false;
+			}
+			for (int index = 0; index < shape.length; index++) {
+				if (instructions[head + index].getOpCode() != shape[index]) {
+					return false;
+				}
+			}
+			return instructions[head + shape.length - 1].getTarget() == head;
+		}
+	}
+
+	/**
+	 * Finds the pure subroutines of a program: those that never touch the
+	 * heap, the input or the output, always return, and always take the same
+	 * number of values off the stack and leave the same number in their
+	 * place.  What a call to one leaves depends only on the values it takes,
+	 * so the call can be memoized on them, see SubroutineCache.
+	 *
+	 * Each body is followed from its entry with the stack depth relative to
+	 * the call, which has to be the same every way an instruction is reached.
+	 * A call inside a body counts as its callee's summary.  Recursion makes
+	 * that circular, so summaries are first guessed from the paths that reach
+	 * a return without an unknown call, until they settle, and then every
+	 * body is checked against the summaries of what it calls.  A subroutine
+	 * that fails the check is dropped, and so are its callers, in turn.
+	 */
+	private static class SubroutineAnalyzer {
+		private static final int MAX_ARGUMENTS = 16;		// larger keys are not worth caching
+		private static final int UNSEEN = Integer.MIN_VALUE;
+		private static final int[] IMPURE = new int[0];
+
+		private final Instruction[] instructions;
+		private final int[] arguments;
+		private final int[] results;
+		private final int[] depths;
+		private final Map<Integer, int[]> summaries = new HashMap<>();		// entry -> { arguments, results }
+
+		public SubroutineAnalyzer(Instruction[] instructions) {
+			this.instructions = instructions;
+			this.arguments = new int[instructions.length + 1];
+			this.results = new int[instructions.length + 1];
+			this.depths = new int[instructions.length + 1];
+			Arrays.fill(arguments, -1);
+			Arrays.fill(depths, UNSEEN);
+			final Set<Integer> entries = new TreeSet<>();
+			for (Instruction instruction : instructions) {
+				if (instruction.getOpCode() == OpCode.CALL) {
+					entries.add(instruction.getTarget());
+				}
+			}
+			guess(entries);
+			check(entries);
+			for (Integer entry : entries) {
+				arguments[entry] = summaries.get(entry)[0];
+				results[entry] = summaries.get(entry)[1];
+			}
+		}
+
+		// values a call to the instruction at entry takes, or -1 when it is not a pure subroutine
+		public int getArguments(int entry) {
+			return arguments[entry];
+		}
+
+		public int getResults(int entry) {
+			return results[entry];
+		}
+
+		// a summary that keeps growing, like that of a call recursing forever, never settles
+		private void guess(Set<Integer> entries) {
+			for (int round = 0; round <= entries.size() + 2; round++) {
+				boolean changed = false;
+				for (Iterator<Integer> it = entries.iterator(); it.hasNext(); ) {
+					final Integer entry = it.next();
+					final int[] summary = follow(entry, false);
+					if (summary == IMPURE) {
+						summaries.remove(entry);
+						it.remove();
+						changed = true;
+					} else if (summary != null && !Arrays.equals(summary, summaries.get(entry))) {
+						summaries.put(entry, summary);
+						changed = true;
+					}
+				}
+				if (!changed) {
+					return;
+				}
+			}
+		}
+
+		private void check(Set<Integer> entries) {
+			boolean dropped = true;
+			while (dropped) {
+				dropped = false;
+				for (Iterator<Integer> it = entries.iterator(); it.hasNext(); ) {
+					final Integer entry = it.next();
+					final int[] summary = summaries.get(entry);
+					if (summary == null || !Arrays.equals(summary, follow(entry, true))) {
+						summaries.remove(entry);
+						it.remove();
+						dropped = true;
+					}
+				}
+			}
+		}
+
+		/**
+		 * The { arguments, results } of the body at entry, IMPURE, or, while
+		 * guessing, null when no return was reached past the calls whose
+		 * summaries are still unknown.  Once checking, an unknown call is
+		 * IMPURE too.
+		 */
+		private int[] follow(int entry, boolean checking) {
+			final Deque<Integer> pending = new ArrayDeque<>();
+			final List<Integer> seen = new ArrayList<>();
+			int needed = 0;
+			int returned = UNSEEN;
+			try {
+				pending.push(entry);
+				seen.add(entry);
+				depths[entry] = 0;
+				while (!pending.isEmpty()) {
+					final int ip = pending.pop();
+					if (ip == instructions.length) {
+						return IMPURE;		// falls off the end
+					}
+					final Instruction instruction = instructions[ip];
+					final int depth = depths[ip];
+					int required;
+					int effect;
+					switch (instruction.getOpCode()) {
+					case PUSH:
+						required = 0;
+						effect = 1;
+						break;
+					case DUPLICATE:
+						required = 1;
+						effect = 1;
+						break;
+					case DUPLICATE_NTH:
+						if (instruction.getOperand() < 0) {
+							return IMPURE;
+						}
+						required = instruction.getOperand() + 1;
+						effect = 1;
+						break;
+					case SLIDE:
+						// a negative count clears whatever the caller had below
+						if (instruction.getOperand() < 0) {
+							return IMPURE;
+						}
+						required = instruction.getOperand() + 1;
+						effect = -instruction.getOperand();
+						break;
+					case DISCARD:
+					case JUMP_ZERO:
+					case JUMP_NEGATIVE:
+						required = 1;
+						effect = -1;
+						break;
+					case SWAP:
+						required = 2;
+						effect = 0;
+						break;
+					case ADD:
+					case SUBTRACT:
+					case MULTIPLY:
+					case DIVIDE:
+					case MODULO:
+						required = 2;
+						effect = -1;
+						break;
+					case ADD_IMMEDIATE:
+					case DUPLICATE_JUMP_ZERO:
+						required = 1;
+						effect = 0;
+						break;
+					case JUMP:
+					case RETURN:
+						required = 0;
+						effect = 0;
+						break;
+					case CALL: {
+						final int[] callee = summaries.get(instruction.getTarget());
+						if (callee == null) {
+							if (checking) {
+								return IMPURE;
+							}
+							continue;		// the path resumes once the callee has a summary
+						}
+						required = callee[0];
+						effect = callee[1] - callee[0];
+						break;
+					}
+					default:		// heap, I/O, END and anything that always fails
+						return IMPURE;
+					}
+					needed = Math.max(needed, required - depth);
+					final int next = depth + effect;
+					if (instruction.getOpCode() == OpCode.RETURN) {
+						if (returned != UNSEEN && returned != depth) {
+							return IMPURE;
+						}
+						returned = depth;
+						continue;
+					}
+					if (instruction.isBranch() && instruction.getOpCode() != OpCode.CALL
+							&& !reach(instruction.getTarget(), next, pending, seen)) {
+						return IMPURE;
+					}
+					if (instruction.getOpCode() != OpCode.JUMP && !reach(ip + 1, next, pending, seen)) {
+						return IMPURE;
+					}
+				}
+			} finally {
+				for (int ip : seen) {
+					depths[ip] = UNSEEN;
+				}
+			}
+			if (returned == UNSEEN) {
+				return checking ? IMPURE : null;
+			}
+			if (needed > MAX_ARGUMENTS || needed + returned > MAX_ARGUMENTS) {
+				return IMPURE;
+			}
+			return new int[] { needed, needed + returned };
+		}
+
+		// false when ip was already reached at another depth
+		private boolean reach(int ip, int depth, Deque<Integer> pending, List<Integer> seen) {
+			if (depths[ip] == UNSEEN) {
+				depths[ip] = depth;
+				seen.add(ip);
+				pending.push(ip);
+				return true;
+			}
+			return depths[ip] == depth;
+		}
+	}
+
+	/**
+	 * Decodes and optimizes a program only as far as its runs have reached.
+	 * An instruction is published, for the engines to run, once the optimizer
+	 * can no longer fuse anything into it and the label it branches to, if
+	 * any, has been declared; a branch to a label further on holds back
+	 * everything after it until the scan forward finds the label.  Labels are
+	 * kept as they are found, so each is only searched for once.  Since the
+	 * loader cannot know which labels are jumped to, every declared label is
+	 * treated as a branch target when fusing.
+	 *
+	 * Where the eager loader rejects a program, this one publishes an
+	 * instruction that fails with the same message, so the error surfaces
+	 * only if a run reaches it.  One loader is shared by every run of its
+	 * program, hence the locking; published instructions never change.
+	 */
+	private static class LazyLoader {
+		private final CodeSource source;
+		private final PeepholeOptimizer optimizer = new PeepholeOptimizer();
+		private final CodeScanner scanner;
+		private Instruction[] instructions = new Instruction[64];
+		private int[] opCodes = new int[64];
+		private int[] operands = new int[64];
+		private int published = 0;
+		private boolean exhausted = false;
+		private boolean nextIsEntry = false;
+		private String sourceHash;
+
+		public LazyLoader(CodeSource source) {
+			this.source = source;
+			this.scanner = new CodeScanner(source) {
+				@Override
+				protected int nextIndex() {
+					return optimizer.size();
+				}
+			};
+		}
+
+		// publishes up to instruction ip; false if the program ends before it
+		public synchronized boolean load(int ip) {
+			while (published <= ip && !exhausted) {
+				decodeNext();
+				publish();
+			}
+			return published > ip;
+		}
+
+		public synchronized Instruction[] loadAll() {
+			load(Integer.MAX_VALUE - 1);
+			return Arrays.copyOf(instructions, published);
+		}
+
+		public synchronized String getSourceHash() {
+			if (sourceHash == null) {
+				loadAll();
+				sourceHash = source.hash();
+			}
+			return sourceHash;
+		}
+
+		private void decodeNext() {
+			try {
+				if (scanner.isCompleted()) {
+					exhausted = true;
+					return;
+				}
+				final Instruction instruction = scanner.decodeInstruction();
+				if (instruction == null) {
+					nextIsEntry = true;		// a label was declared
+				} else {
+					optimizer.append(instruction, nextIsEntry);
+					nextIsEntry = instruction.getOpCode() == OpCode.CALL;
+				}
+			} catch (EndOfCodeException ex) {
+				optimizer.append(Instruction.invalid(CodeScanner.PAST_END), nextIsEntry);
+				exhausted = true;
+			} catch (IllegalStateException ex) {
+				// duplicated label or unreadable source: nothing after it can be decoded
+				optimizer.append(Instruction.invalid(ex.getMessage()), true);
+				exhausted = true;
+			}
+		}
+
+		// instructions no later fusion can rewrite: all but the last and the run of pushes before it
+		private int settled() {
+			if (exhausted) {
+				return optimizer.size();
+			}
+			int settled = optimizer.size() - 1;
+			while (settled > published && optimizer.get(settled - 1).getOpCode() == OpCode.PUSH) {
+				--settled;
+			}
+			return settled;
+		}
+
+		private void publish() {
+			final int settled = settled();
+			while (published < settled) {
+				Instruction instruction = optimizer.get(published);
+				if (instruction.isBranch()) {
+					final Label label = scanner.extractLabels().get(instruction.getLabel());
+					if (label != null) {
+						instruction = instruction.resolve(label.getIp());
+					} else if (!exhausted) {
+						return;
+					} else {
+						instruction = Instruction.invalid(CodeScanner.undefinedLabel(instruction.getOpCode(), instruction.getLabel()));
+					}
+				}
+				if (published == instructions.length) {
+					instructions = Arrays.copyOf(instructions, published << 1);
+					opCodes = Arrays.copyOf(opCodes, published << 1);
+					operands = Arrays.copyOf(operands, published << 1);
+				}
+				instructions[published] = instruction;
+				opCodes[published] = instruction.getOpCode().getNumber();
+				operands[published] = instruction.isBranch() ? instruction.getTarget() : instruction.getOperand();
+				++published;
+			}
+		}
+
+		public synchronized int getPublished() {
+			return published;
+		}
+
+		// the arrays hold getPublished() instructions, then spare capacity
+		public synchronized Instruction[] getInstructions() {
+			return instructions;
+		}
+
+		public synchronized int[] getOpCodes() {
+			return opCodes;
+		}
+
+		public synchronized int[] getOperands() {
+			return operands;
+		}
+
+		// upper bound on any label or branch target seen so far
+		public synchronized int getReach() {
+			return optimizer.size();
+		}
+
+		public synchronized Map<String, Label> getLabels() {
+			return new HashMap<>(scanner.extractLabels());
+		}
+	}
+
+	/**
+	 * Raised only while decoding, when an instruction runs past the end of the
+	 * source.  It never escapes the scanner.
+	 */
+	private static class EndOfCodeException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+
+	// execution cursor over a Program: the instruction pointer and the return stack of one run
+	private static class Code {
+		private final Program program;
+		private final LazyLoader loader;
+		private Instruction[] instructions;
+		private int[] opCodes;
+		private int[] operands;
+		private int loaded;
+		private final Profiler profiler;
+		private long[] targetHits;
+		private final Guard guard;
+		private final Tracer tracer;
+		private final Memoizer memoizer;
+		private int ip = 0;
+		private boolean pauseAtInput = false;		// stop before the first read, see Snapshot
+		private boolean paused = false;
+		
+		private IntStack subStack = new IntStack();
+
+		public Code(Program program, Profiler profiler, Guard guard, Tracer tracer, SubroutineCache cache) {
+			this.program = program;
+			this.loader = program.getLoader();
+			this.profiler = profiler;
+			if (loader != null) {
+				refresh();
+			} else {
+				instructions = program.getInstructions();
+				// idioms skip instructions, which profiles, limits and traces must each see
+				opCodes = profiler == null && guard == null && tracer == null ? program.getIdiomOpCodes() : program.getOpCodes();
+				operands = program.getOperands();
+				loaded = instructions.length;
+				targetHits = profiler != null ? new long[instructions.length + 1] : null;
+			}
+			this.guard = guard;
+			this.tracer = tracer;
+			// a cached call skips its instructions, which profiles, limits and traces must each see
+			this.memoizer = cache != null && loader == null && profiler == null && guard == null && tracer == null
+					? new Memoizer(cache, program) : null;
+			if (guard != null) {
+				guard.code = this;
+			}
+		}
+
+		public Program getProgram() {
+			return program;
+		}
+		
+		public Instruction nextInstruction() {
+			return instructions[ip++];
+		}
+		
+		public boolean isCompleted() {
+			return ip >= loaded && !load(ip);
+		}
+
+		// loads a lazily loaded program up to index; false if it ends before it, or is not lazy
+		public boolean load(int index) {
+			if (loader == null || !loader.load(index)) {
+				return false;
+			}
+			refresh();
+			return true;
+		}
+
+		// the count first: whatever arrays come after hold at least that much
+		private void refresh() {
+			loaded = loader.getPublished();
+			instructions = loader.getInstructions();
+			opCodes = loader.getOpCodes();
+			operands = loader.getOperands();
+			if (profiler != null) {
+				final int length = loader.getReach() + 1;
+				if (targetHits == null || targetHits.length < length) {
+					targetHits = targetHits == null ? new long[length] : Arrays.copyOf(targetHits, length);
+				}
+			}
+		}
+
+		// instructions that can run without loading more
+		public int getLoaded() {
+			return loaded;
+		}
+		
+		public void callSub(int target) {
+			subStack.push(ip);
+			transfer(target);
+			if (guard != null) {
+				guard.checkCall(subStack.size());
+			}
+		}
+		
+		public void returnFromSub() {
+			ip = subStack.pop();
+		}
+
+		// steps back onto the read instruction just fetched, so it runs again on resume
+		public void pause() {
+			--ip;
+			paused = true;
+		}
+		
+		public void jump(int target) {
+			final boolean backwards = target < ip;
+			transfer(target);
+			if (guard != null && backwards) {
+				guard.check();
+			}
+		}
+
+		private void transfer(int target) {
+			if (targetHits != null) {
+				++targetHits[target];
+			}
+			ip = target;
+		}
+
+		public Instruction getInstruction(int index) {
+			return instructions[index];
+		}
+
+		// opcode numbers, see Op
+		public int[] getOpCodes() {
+			return opCodes;
+		}
+
+		public int[] getOperands() {
+			return operands;
+		}
+
+		public IntStack getReturnStack() {
+			return subStack;
+		}
+
+		public Guard getGuard() {
+			return guard;
+		}
+
+		public Profiler getProfiler() {
+			return profiler;
+		}
+
+		public Tracer getTracer() {
+			return tracer;
+		}
+
+		// null unless pure subroutine calls are memoized, which only the int engine does
+		public Memoizer getMemoizer() {
+			return memoizer;
+		}
+
+		// transfers of control per instruction index, or null when not profiling
+		public long[] getTargetHits() {
+			return targetHits;
+		}
+	}
+
+	/**
+	 * Runtime half of a compiled program.  Generated code keeps the operand
+	 * and return stacks in local arrays and only calls back in here for the
+	 * heap, I/O and the exceptions that must match the interpreter's.
+	 */
+	private static class CompiledContext {
+		private final Heap heap = new Heap();
+		private final InputSource input;
+		private final OutputSink output;
+
+		public CompiledContext(InputSource input, OutputSink output) {
+			this.input = input;
+			this.output = output;
+		}
+
+		public void store(int address, int value) {
+			heap.store(address, value);
+		}
+
+		public int retrieve(int address) {
+			return heap.retrieve(address);
+		}
+
+		public void outputChar(int value) {
+			output.writeChar(value);
+		}
+
+		public void outputNumber(int value) {
+			output.writeNumber(value);
+		}
+
+		public void readChar(int address) {
+			output.beforeInput();
+			heap.store(address, input.read());
+		}
+
+		public void readNumber(int address) {
+			output.beforeInput();
+			heap.store(address, input.readNumber());
+		}
+
+		public static int[] grow(int[] stack) {
+			return Arrays.copyOf(stack, stack.length << 1);
+		}
+
+		// grown to hold at least length values
+		public static int[] grow(int[] stack, int length) {
+			return Arrays.copyOf(stack, Math.max(stack.length << 1, length));
+		}
+
+		// same semantics as IntStack.slide, returning the new stack size
+		public static int slide(int[] stack, int size, int itemCount) {
+			int top = stack[--size];
+			if (itemCount < 0 || itemCount >= size) {
+				size = 0;
+			} else {
+				size -= itemCount;
+			}
+			stack[size++] = top;
+			return size;
+		}
+
+		public static IllegalStateException underflow() {
+			return new IllegalStateException("Stack underflow");
+		}
+
+		public static IllegalStateException invalid(String message) {
+			return new IllegalStateException(message);
+		}
+
+		public static ArithmeticException divideByZero() {
+			return new ArithmeticException("Divide by zero");
+		}
+	}
+
+	private static class CompiledProgram {
+		private final MethodHandle entry;
+
+		public CompiledProgram(MethodHandle entry) {
+			this.entry = entry;
+		}
+
+		public String run(InputSource input, OutputSink output) {
+			final CompiledContext context = new CompiledContext(input, output);
+			try {
+				entry.invoke(context);
+			} catch (RuntimeException ex) {
+				output.terminate(ex);
+				throw ex;
+			} catch (Error ex) {
+				throw ex;
+			} catch (Throwable ex) {
+				throw new IllegalStateException("Compiled program failed", ex);
+			}
+			output.terminate();
+			return output.toString();
+		}
+	}
+
+	/**
+	 * Translates decoded instructions into a single static method
+	 * run(CompiledContext) of a hidden class.  Every instruction index becomes
+	 * a branch target; calls push a return-site number and returns dispatch on
+	 * it with a tableswitch.  The class file is emitted at version 49 so no
+	 * stack map frames are needed.  Underflow checks are only emitted where
+	 * the StackVerifier could not prove the depth.
+	 *
+	 * Within a basic block the operand stack is register-based: each value
+	 * the block pushes is a constant, a local of the generated method, or a
+	 * slot of the stack array as the block found it.  Pushes, dup, copy,
+	 * swap, discard, slide and arithmetic only move these around, with
+	 * constants folded, and the array and its size are written once, with
+	 * the block's net effect, where control can leave or enter: at labels,
+	 * return sites, jumps, calls and returns.  Underflow is checked against
+	 * the size the block started from, at the instruction that would have
+	 * underflowed, so failures and their order are unchanged.  Nothing can
+	 * observe the array mid-block, since compiled runs keep no machine state.
+	 */
+	private static class BytecodeCompiler {
+		private static final String CLASS_NAME = "WhitespaceCompiledProgram";
+		private static final String CONTEXT = "WhitespaceInterpreter$CompiledContext";
+		private static final int MAX_CODE_LENGTH = Short.MAX_VALUE;
+
+		// local variable slots of the generated method
+		private static final int STACK = 1;
+		private static final int SIZE = 2;
+		private static final int CALLS = 3;
+		private static final int CALL_SIZE = 4;
+		private static final int FIRST_REGISTER = 5;
+		private static final int MAX_LOCALS = 256;		// registers are addressed with one-byte indexes
+		private static final int REGISTER_MARGIN = 8;		// kept free for one instruction and its write-back
+
+		private static final int ICONST_0 = 0x03;
+		private static final int BIPUSH = 0x10;
+		private static final int SIPUSH = 0x11;
+		private static final int LDC = 0x12;
+		private static final int LDC_W = 0x13;
+		private static final int ILOAD = 0x15;
+		private static final int ALOAD_0 = 0x2a;
+		private static final int ALOAD_1 = 0x2b;
+		private static final int ALOAD_3 = 0x2d;
+		private static final int IALOAD = 0x2e;
+		private static final int ISTORE = 0x36;
+		private static final int ASTORE_1 = 0x4c;
+		private static final int ASTORE_3 = 0x4e;
+		private static final int IASTORE = 0x4f;
+		private static final int IADD = 0x60;
+		private static final int ISUB = 0x64;
+		private static final int IMUL = 0x68;
+		private static final int IINC = 0x84;
+		private static final int IFEQ = 0x99;
+		private static final int IFNE = 0x9a;
+		private static final int IFLT = 0x9b;
+		private static final int IFGT = 0x9d;
+		private static final int IF_ICMPGE = 0xa2;
+		private static final int IF_ICMPGT = 0xa3;
+		private static final int GOTO = 0xa7;
+		private static final int TABLESWITCH = 0xaa;
+		private static final int RETURN = 0xb1;
+		private static final int INVOKEVIRTUAL = 0xb6;
+		private static final int INVOKESTATIC = 0xb8;
+		private static final int NEWARRAY = 0xbc;
+		private static final int ARRAYLENGTH = 0xbe;
+		private static final int ATHROW = 0xbf;
+		private static final int T_INT = 10;
+
+		private final Instruction[] instructions;
+		private final int[] provenDepths;
+		private final ConstantPool pool = new ConstantPool();
+		private final ClassFileBuffer code = new ClassFileBuffer();
+		private final int[] targets;
+		private final List<int[]> fixups = new ArrayList<>();
+		private final List<Integer> returnSites = new ArrayList<>();
+		private int callCount = 0;		// calls are numbered in program order, matching returnSites
+		private int current;			// index of the instruction being emitted
+		private final boolean[] blockStarts;
+		private final List<Value> values = new ArrayList<>();	// the block's stack, above the slots it left alone
+		private int consumed = 0;		// slots the block has taken off the top of the array
+		private int nextRegister = FIRST_REGISTER;
+		private int maxLocals = FIRST_REGISTER;
+
+		/**
+		 * A value on a block's stack: a constant, a register, or the array
+		 * slot the given depth below the top the block started from.
+		 */
+		private static final class Value {
+			static final int CONSTANT = 0;
+			static final int REGISTER = 1;
+			static final int SLOT = 2;
+
+			final int kind;
+			final int value;
+
+			private Value(int kind, int value) {
+				this.kind = kind;
+				this.value = value;
+			}
+
+			static Value constant(int value) {
+				return new Value(CONSTANT, value);
+			}
+
+			boolean isConstant() {
+				return kind == CONSTANT;
+			}
+		}
+
+		private BytecodeCompiler(Instruction[] instructions, int[] provenDepths) {
+			this.instructions = instructions;
+			this.provenDepths = provenDepths;
+			this.targets = new int[instructions.length + 1];
+			this.blockStarts = new boolean[instructions.length + 1];
+			for (int index = 0; index < instructions.length; index++) {
+				if (instructions[index].getOpCode() == OpCode.CALL) {
+					returnSites.add(index + 1);
+					blockStarts[index + 1] = true;
+				}
+				if (instructions[index].isBranch()) {
+					blockStarts[instructions[index].getTarget()] = true;
+				}
+			}
+		}
+
+		// returns null when the program does not fit in a single method
+		public static CompiledProgram compile(Instruction[] instructions, int[] provenDepths) {
+			final BytecodeCompiler compiler = new BytecodeCompiler(instructions, provenDepths);
+			final byte[] classFile = compiler.generate();
+			if (classFile == null) {
+				return null;
+			}
+			try {
+				final MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+				return new CompiledProgram(lookup.findStatic(lookup.lookupClass(), "run",
+						MethodType.methodType(void.class, CompiledContext.class)));
+			} catch (IllegalAccessException | NoSuchMethodException ex) {
+				throw new IllegalStateException("Unable to load compiled program", ex);
 			}
 		}
 
-		if (code == null || code.isEmpty()) {
-			throw new IllegalStateException("Code is null");
+		private byte[] generate() {
+			emitPrologue();
+			for (int index = 0; index < instructions.length; index++) {
+				current = index;
+				if (blockStarts[index] || nextRegister + values.size() + REGISTER_MARGIN > MAX_LOCALS) {
+					flush();
+				}
+				targets[index] = code.size();
+				emitInstruction(instructions[index]);
+				if (code.size() > MAX_CODE_LENGTH) {
+					return null;
+				}
+			}
+			targets[instructions.length] = code.size();
+			emitThrow("Unclean termination");
+			if (code.size() > MAX_CODE_LENGTH) {
+				return null;
+			}
+			for (int[] fixup : fixups) {
+				int offset = targets[fixup[2]] - fixup[0];
+				if (fixup[3] == 4) {
+					code.putInt(fixup[1], offset);
+				} else {
+					code.putShort(fixup[1], offset);
+				}
+			}
+			return writeClass();
 		}
 
-		final Code instructions = new Code(code);
-		Reader reader = null;
-		if (input != null) {
-			reader = new InputStreamReader(input, Charset.defaultCharset());
+		private void emitPrologue() {
+			pushConstant(64);
+			code.u1(NEWARRAY).u1(T_INT).u1(ASTORE_1);
+			code.u1(ICONST_0).u1(ISTORE).u1(SIZE);
+			pushConstant(16);
+			code.u1(NEWARRAY).u1(T_INT).u1(ASTORE_3);
+			code.u1(ICONST_0).u1(ISTORE).u1(CALL_SIZE);
 		}
-		return execute(instructions, reader, output);
-	}
-	
-	private static String execute(Code code, Reader reader, OutputStream outputStream) {
-		final Stack<Integer> stack = new Stack<>();
-		final Map<Integer, Integer> heap = new HashMap<>();
-		final StringBuilder output = new StringBuilder();
 
-		boolean cleanTermination = false;
-		while (!code.isCompleted()) {
-			char imp = code.nextOpCode();
-			if (imp == SPACE) {
-				processSpace(code, stack, heap, reader, output);
-			} else if (imp == LF) {
-				boolean endProgram = processLF(code, stack, heap, reader, output);
-				if (endProgram) {
-					cleanTermination = true;
+		private void emitInstruction(Instruction instruction) {
+			switch (instruction.getOpCode()) {
+			case PUSH:
+				values.add(Value.constant(instruction.getOperand()));
+				break;
+			case DUPLICATE_NTH: {
+				int nth = instruction.getOperand();
+				if (nth < 0) {
+					emitThrow("Stack index " + nth + " is out of range");
 					break;
 				}
-			} else {
-				processTab(code, stack, heap, reader, output, outputStream);
-			}			
+				values.add(peek(nth + 1, "Stack index " + nth + " is out of range"));
+				break;
+			}
+			case SLIDE: {
+				take(1);
+				final Value top = pop();
+				final int itemCount = instruction.getOperand();
+				if (itemCount >= 0 && itemCount < values.size()) {
+					values.subList(values.size() - itemCount, values.size()).clear();
+					values.add(top);
+					break;
+				}
+				// what is left depends on the depth at run time
+				values.add(top);
+				flush();
+				code.u1(ALOAD_1).u1(ILOAD).u1(SIZE);
+				pushConstant(itemCount);
+				invokeStatic("slide", "([III)I");
+				code.u1(ISTORE).u1(SIZE);
+				break;
+			}
+			case DUPLICATE:
+				values.add(peek(1, null));
+				break;
+			case DISCARD:
+				take(1);
+				pop();
+				break;
+			case SWAP: {
+				take(2);
+				final Value top = pop();
+				final Value second = pop();
+				values.add(top);
+				values.add(second);
+				break;
+			}
+			case ADD:
+				emitArithmetic(IADD);
+				break;
+			case SUBTRACT:
+				emitArithmetic(ISUB);
+				break;
+			case MULTIPLY:
+				emitArithmetic(IMUL);
+				break;
+			case DIVIDE:
+			case MODULO: {
+				take(2);
+				final Value divisor = pop();
+				final Value dividend = pop();
+				if (!divisor.isConstant()) {
+					load(divisor);
+					int skip = branchForward(IFNE);
+					invokeStatic("divideByZero", "()Ljava/lang/ArithmeticException;");
+					code.u1(ATHROW);
+					patchForward(skip);
+				} else if (divisor.value == 0) {
+					invokeStatic("divideByZero", "()Ljava/lang/ArithmeticException;");
+					code.u1(ATHROW);
+					values.add(Value.constant(0));		// never reached
+					break;
+				}
+				final boolean divide = instruction.getOpCode() == OpCode.DIVIDE;
+				if (dividend.isConstant() && divisor.isConstant()) {
+					values.add(Value.constant(divide ? Math.floorDiv(dividend.value, divisor.value)
+							: Math.floorMod(dividend.value, divisor.value)));
+					break;
+				}
+				load(dividend);
+				load(divisor);
+				code.u1(INVOKESTATIC).u2(pool.methodRef("java/lang/Math", divide ? "floorDiv" : "floorMod", "(II)I"));
+				values.add(storeRegister());
+				break;
+			}
+			case STORE: {
+				take(2);
+				final Value value = pop();
+				final Value address = pop();
+				code.u1(ALOAD_0);
+				load(address);
+				load(value);
+				invokeContext("store", "(II)V");
+				break;
+			}
+			case RETRIEVE: {
+				take(1);
+				final Value address = pop();
+				code.u1(ALOAD_0);
+				load(address);
+				invokeContext("retrieve", "(I)I");
+				values.add(storeRegister());
+				break;
+			}
+			case ADD_IMMEDIATE:
+				take(1);
+				values.add(arithmetic(IADD, pop(), Value.constant(instruction.getOperand())));
+				break;
+			case RETRIEVE_AT:
+				code.u1(ALOAD_0);
+				pushConstant(instruction.getOperand());
+				invokeContext("retrieve", "(I)I");
+				values.add(storeRegister());
+				break;
+			case STORE_AT: {
+				take(1);
+				final Value value = pop();
+				code.u1(ALOAD_0);
+				pushConstant(instruction.getOperand());
+				load(value);
+				invokeContext("store", "(II)V");
+				break;
+			}
+			case OUTPUT_CHAR:
+				emitPopInto("outputChar");
+				break;
+			case OUTPUT_NUMBER:
+				emitPopInto("outputNumber");
+				break;
+			case READ_CHAR:
+				emitPopInto("readChar");
+				break;
+			case READ_NUMBER:
+				emitPopInto("readNumber");
+				break;
+			case CALL: {
+				flush();
+				code.u1(ALOAD_3).u1(ARRAYLENGTH).u1(ILOAD).u1(CALL_SIZE);
+				int skip = branchForward(IF_ICMPGT);
+				code.u1(ALOAD_3);
+				invokeStatic("grow", "([I)[I");
+				code.u1(ASTORE_3);
+				patchForward(skip);
+				code.u1(ALOAD_3).u1(ILOAD).u1(CALL_SIZE);
+				pushConstant(callCount++);
+				code.u1(IASTORE);
+				increment(CALL_SIZE, 1);
+				branchTo(GOTO, instruction.getTarget());
+				break;
+			}
+			case JUMP:
+				flush();
+				branchTo(GOTO, instruction.getTarget());
+				break;
+			case JUMP_ZERO:
+				emitConditional(IFEQ, instruction.getTarget());
+				break;
+			case JUMP_NEGATIVE:
+				emitConditional(IFLT, instruction.getTarget());
+				break;
+			case DUPLICATE_JUMP_ZERO:
+				peek(1, null);
+				flush();
+				loadFromTop(1);
+				branchTo(IFEQ, instruction.getTarget());
+				break;
+			case RETURN:
+				flush();
+				emitReturn();
+				break;
+			case END:
+				code.u1(RETURN);
+				abandon();
+				break;
+			default:
+				emitThrow(instruction.getMessage());
+				abandon();
+			}
 		}
 
-		if (!cleanTermination) {
-			throw new IllegalStateException("Unclean termination");
+		private void emitArithmetic(int opcode) {
+			take(2);
+			final Value right = pop();
+			final Value left = pop();
+			values.add(arithmetic(opcode, left, right));
 		}
-		return output.toString();		
-	}
-	
-	private static int extractNumber(ICode code) {
-		char sign = code.nextOpCode();
-		if (sign == LF) {
-			throw new IllegalStateException("Numbers must start with a sign at minimum");
+
+		private Value arithmetic(int opcode, Value left, Value right) {
+			if (left.isConstant() && right.isConstant()) {
+				return Value.constant(opcode == IADD ? left.value + right.value
+						: opcode == ISUB ? left.value - right.value : left.value * right.value);
+			}
+			load(left);
+			load(right);
+			code.u1(opcode);
+			return storeRegister();
 		}
-		boolean isNegative = sign == TAB;
-		
-		final StringBuilder binary = new StringBuilder();
-		while (true) {
-			char bit = code.nextOpCode();
-			if (bit == LF) {
-				break;
+
+		private void emitPopInto(String method) {
+			take(1);
+			final Value value = pop();
+			code.u1(ALOAD_0);
+			load(value);
+			invokeContext(method, "(I)V");
+		}
+
+		private void emitConditional(int opcode, int target) {
+			take(1);
+			Value value = pop();
+			if (value.isConstant()) {
+				flush();
+				if (opcode == IFEQ ? value.value == 0 : value.value < 0) {
+					branchTo(GOTO, target);
+				}
+				return;
 			}
-			binary.append(bit == TAB ? '1' : '0');
+			if (value.kind == Value.SLOT) {
+				// its slot may be rewritten by the flush
+				load(value);
+				value = storeRegister();
+			}
+			flush();
+			load(value);
+			branchTo(opcode, target);
 		}
-		// A number expression [sign][terminal] will be treated as zero
-		int number = binary.length() == 0 ? 0 : Integer.parseInt(binary.toString(), 2);
-		return number * (isNegative ? -1 : 1);
-	}
-	
-	private static String extractLabel(ICode code) {
-		final StringBuilder label = new StringBuilder();
-		while (true) {
-			char ch = code.nextOpCode();
-			if (ch == LF) {
-				break;
+
+		// the value count deep, without taking anything off the array
+		private Value peek(int count, String indexMessage) {
+			check(count, indexMessage);
+			return count <= values.size() ? values.get(values.size() - count)
+					: new Value(Value.SLOT, consumed + count - values.size());
+		}
+
+		// makes sure the top count values are the block's, taking slots off the array as needed
+		private void take(int count) {
+			check(count, null);
+			while (values.size() < count) {
+				values.add(0, new Value(Value.SLOT, ++consumed));
 			}
-			label.append(ch);
 		}
-		return label.toString();
-	}
-	
-	private static void processSpace(Code code, Stack<Integer> stack,
-			Map<Integer, Integer> heap, Reader reader, StringBuilder output) {
-		char command = code.nextOpCode();
-		if (command == SPACE) {
-			stack.push(extractNumber(code));
-		} else if (command == TAB) {
-			char subCommand = code.nextOpCode();
-			if (subCommand == SPACE) {
-				int index = extractNumber(code);	// Duplicate the nth value from the top of the stack and push onto the stack
-				int stackIndex = (stack.size() - 1) - index;
-				stack.push(stack.get(stackIndex));
-			} else if (subCommand == LF) {
-				int itemCount = extractNumber(code);	// Discard the top n values below the top of the stack from the stack
-				int top = stack.pop();
-				if (itemCount < 0 || itemCount >= stack.size()) {
-					stack.clear();
-				} else {
-					for (int count = 0; count < itemCount; count++) {
-						stack.pop();
-					}
-				}
-				stack.push(top);
-			} else {
-				throw new IllegalStateException("SPACE TAB TAB is invalid IMP sequence");
-			}
-		} else if (command == LF) {
-			char subCommand = code.nextOpCode();
-			if (subCommand == SPACE) {
-				stack.push(stack.peek());		// duplicate top of stack
-			} else if (subCommand == LF) {
-				stack.pop();	// discard top of stack
+
+		private Value pop() {
+			return values.remove(values.size() - 1);
+		}
+
+		// the depth check, against the array size the block started from; none where the verifier proved it
+		private void check(int count, String indexMessage) {
+			if (values.size() >= count || provenDepths[current] >= count) {
+				return;
+			}
+			code.u1(ILOAD).u1(SIZE);
+			pushConstant(consumed + count - values.size());
+			int skip = branchForward(IF_ICMPGE);
+			if (indexMessage != null) {
+				emitThrow(indexMessage);
 			} else {
-				int first = stack.pop();		// swap top 2 items in stack
-				int second = stack.pop();
-				stack.push(first);
-				stack.push(second);
+				invokeStatic("underflow", "()Ljava/lang/IllegalStateException;");
+				code.u1(ATHROW);
 			}
+			patchForward(skip);
 		}
-	}
-	
-	private static boolean processLF(Code code, Stack<Integer> stack,
-			Map<Integer, Integer> heap, Reader reader, StringBuilder output) {
-		char command = code.nextOpCode();
-		if (command == SPACE) {
-			char subCommand = code.nextOpCode();
-			if (subCommand == SPACE) {
-				extractLabel(code);
-			} else if (subCommand == TAB) {
-				code.callSub(extractLabel(code));
+
+		private void load(Value value) {
+			if (value.kind == Value.CONSTANT) {
+				pushConstant(value.value);
+			} else if (value.kind == Value.REGISTER) {
+				code.u1(ILOAD).u1(value.value);
 			} else {
-				code.jump(extractLabel(code));
+				loadFromTop(value.value);
 			}
-		} else if (command == TAB) {
-			char subCommand = code.nextOpCode();
-			if (subCommand == SPACE) {
-				// jump if 0 (JZ)
-				String label = extractLabel(code);
-				if (stack.pop() == 0) {
-					code.jump(label);
+		}
+
+		// stores the int on top of the operand stack in a fresh register
+		private Value storeRegister() {
+			final int register = nextRegister++;
+			maxLocals = Math.max(maxLocals, nextRegister);
+			code.u1(ISTORE).u1(register);
+			return new Value(Value.REGISTER, register);
+		}
+
+		/**
+		 * Writes the block's stack back to the array, as the net effect of
+		 * the instructions since the last flush, and starts a new block.
+		 * Slots still at their own depth are left as they are.
+		 */
+		private void flush() {
+			final int count = values.size();
+			// slots that move are read before any slot is written
+			for (int index = 0; index < count; index++) {
+				final Value value = values.get(index);
+				if (value.kind == Value.SLOT && value.value <= consumed && value.value != consumed - index) {
+					load(value);
+					values.set(index, storeRegister());
 				}
-			} else if (subCommand == LF) {
-				code.returnFromSub();
-			} else {
-				// jump if negative (JLZ)
-				String label = extractLabel(code);
-				if (stack.pop() < 0) {
-					code.jump(label);
+			}
+			final int growth = count - consumed;
+			if (growth > 0) {
+				ensureCapacity(growth);
+			}
+			for (int index = 0; index < count; index++) {
+				final Value value = values.get(index);
+				if (value.kind != Value.SLOT || value.value != consumed - index) {
+					addressFromTop(consumed - index);
+					load(value);
+					code.u1(IASTORE);
 				}
 			}
-		} else if (command == LF) {
-			char subCommand = code.nextOpCode();
-			if (subCommand == SPACE) {
-				throw new IllegalStateException("LF LF SPACE is invalid IMP sequence");
-			} else if (subCommand == LF) {
-				return true;
+			if (growth >= Byte.MIN_VALUE && growth <= Byte.MAX_VALUE) {
+				if (growth != 0) {
+					increment(SIZE, growth);
+				}
 			} else {
-				throw new IllegalStateException("LF LF TAB is invalid IMP sequence");
+				code.u1(ILOAD).u1(SIZE);
+				pushConstant(growth);
+				code.u1(IADD).u1(ISTORE).u1(SIZE);
 			}
+			abandon();
 		}
-		
-		return false;
-	}
-	
-	private static void processTab(Code code, Stack<Integer> stack,
-			Map<Integer, Integer> heap, Reader reader, 
-			StringBuilder output, OutputStream outputStream) {
-		char command = code.nextOpCode();
-		if (command == SPACE) {
-			char subCommand = code.nextOpCode();
-			if (subCommand == SPACE) {
-				processTabSpaceSpace(code, stack);
-			} else if (subCommand == TAB) {
-				processTabSpaceTab(code, stack);
-			} else {
-				throw new IllegalStateException("TAB SPACE LF is invalid IMP sequence");
-			}
-		} else if (command == TAB) {
-			char subCommand = code.nextOpCode();
-			if (subCommand == SPACE) {
-				int value = stack.pop();
-				int address = stack.pop();
-				heap.put(address, value);
-			} else if (subCommand == LF) {
-				throw new IllegalStateException("TAB SPACE LF is invalid IMP sequence");
-			} else {
-				int address = stack.pop();
-				stack.push(heap.get(address));
-			}
-		} else if (command == LF) {
-			char subCommand = code.nextOpCode();
-			if (subCommand == SPACE) {
-				processTabLFSpace(code, stack, output, outputStream);
-			} else if (subCommand == LF) {
-				throw new IllegalStateException("TAB LF LF is invalid IMP sequence");
-			} else {
-				processTabLFTab(code, stack, heap, reader);
-			}
+
+		// forgets the block's stack: after a flush, or where control never falls through
+		private void abandon() {
+			values.clear();
+			consumed = 0;
+			nextRegister = FIRST_REGISTER;
 		}
-	}
-	
-	private static void emitString(String string, StringBuilder output, OutputStream outputStream) {
-		output.append(string);
-	    if (outputStream != null) {
-	    	// I cannot believe the foolishness of depending on output for tests when
-	    	// an exceptional circumstance exists!  Oh well...stupid is as stupid does.
-	    	try {
-			    for (byte b : string.getBytes()) {
-			    	outputStream.write(b);
-			    }
-			    outputStream.flush();
-	    	} catch (IOException ex) {
-	    		throw new IllegalStateException("Error writing to output stream");
-	    	}
-	    }
-	}
-	
-	private static void processTabLFSpace(Code code, Stack<Integer> stack,
-			StringBuilder output, OutputStream outputStream) {
-		char opcode = code.nextOpCode();
-		if (opcode == SPACE) {
-			emitString(Character.toString(stack.pop()), output, outputStream);
-		} else if (opcode == TAB) {
-			emitString(Integer.toString(stack.pop()), output, outputStream);
-		} else {
-			throw new IllegalStateException("TAB LF SPACE LF is invalid IMP sequence");
+
+		private void emitReturn() {
+			code.u1(ILOAD).u1(CALL_SIZE);
+			int skip = branchForward(IFGT);
+			invokeStatic("underflow", "()Ljava/lang/IllegalStateException;");
+			code.u1(ATHROW);
+			patchForward(skip);
+			if (returnSites.isEmpty()) {
+				// nothing was ever called, so the return stack is always empty
+				return;
+			}
+			increment(CALL_SIZE, -1);
+			code.u1(ALOAD_3).u1(ILOAD).u1(CALL_SIZE).u1(IALOAD);
+			int start = code.size();
+			code.u1(TABLESWITCH);
+			while (code.size() % 4 != 0) {
+				code.u1(0);
+			}
+			// default is unreachable: only recorded return sites are ever pushed
+			fixups.add(new int[] { start, code.size(), instructions.length, 4 });
+			code.u4(0).u4(0).u4(returnSites.size() - 1);
+			for (int site : returnSites) {
+				fixups.add(new int[] { start, code.size(), site, 4 });
+				code.u4(0);
+			}
 		}
-	}
 
-	private static int readNumber(Reader reader) {
-		final StringBuilder sb = new StringBuilder();
-		try {
-			while (true) {
-				int ch = reader.read();
-				if (ch == -1 || ch == '\n') {
-					break;
-				}
-				sb.append((char)ch);
+		private void emitThrow(String message) {
+			int index = pool.string(message);
+			if (index < 256) {
+				code.u1(LDC).u1(index);
+			} else {
+				code.u1(LDC_W).u2(index);
 			}
-		} catch (IOException ex) {
-			throw new IllegalStateException("IOException reading number from input");
+			invokeStatic("invalid", "(Ljava/lang/String;)Ljava/lang/IllegalStateException;");
+			code.u1(ATHROW);
 		}
 
-		String number = sb.toString();
-		int radix = 10;
-		if (number.startsWith("0b")) {
-			number = number.substring(2);
-			radix = 2;
-		} else if (number.startsWith("0x")) {
-			number = number.substring(2);
-			radix = 16;
-		} else if (number.length() > 1 && number.startsWith("0")) {
-			number = number.substring(1);
-			radix = 8;
+		// grows the array, if need be, to take extra more values
+		private void ensureCapacity(int extra) {
+			code.u1(ALOAD_1).u1(ARRAYLENGTH).u1(ILOAD).u1(SIZE);
+			pushConstant(extra);
+			code.u1(IADD);
+			int skip = branchForward(IF_ICMPGE);
+			code.u1(ALOAD_1).u1(ILOAD).u1(SIZE);
+			pushConstant(extra);
+			code.u1(IADD);
+			invokeStatic("grow", "([II)[I");
+			code.u1(ASTORE_1);
+			patchForward(skip);
 		}
-		return Integer.parseInt(number, radix);
-	}
 
-	private static void processTabLFTab(Code code, Stack<Integer> stack,
-										Map<Integer, Integer> heap, Reader reader) {
-		char opcode = code.nextOpCode();
-		if (opcode == SPACE) {
-			int address = stack.pop();
-			try {
-				int ch = reader.read();
-				heap.put(address, ch);
-			} catch (IOException ex) {
-				throw new IllegalStateException("IOException reading character from input");
-			}
-		} else if (opcode == TAB) {
-			int address = stack.pop();
-			int value = readNumber(reader);
-			heap.put(address, value);
-		} else {
-			throw new IllegalStateException("TAB LF TAB LF is invalid IMP sequence");
+		// pushes stack, size - depth: the array slot of the depth'th value from the top
+		private void addressFromTop(int depth) {
+			code.u1(ALOAD_1).u1(ILOAD).u1(SIZE);
+			pushConstant(depth);
+			code.u1(ISUB);
 		}
-	}
-	
-	private static void processTabSpaceSpace(Code code, Stack<Integer> stack) {
-		char opcode = code.nextOpCode();
-		if (opcode == SPACE) {
-			stack.push(stack.pop() + stack.pop());
-		} else if (opcode == TAB) {
-			int subtrahend = stack.pop();
-			int minuend = stack.pop();
-			stack.push(minuend - subtrahend);
-		} else {
-			int multiplier = stack.pop();
-			int multiplicand = stack.pop();
-			stack.push(multiplicand * multiplier);
+
+		private void loadFromTop(int depth) {
+			addressFromTop(depth);
+			code.u1(IALOAD);
 		}
-	}
-	
-	private static void processTabSpaceTab(Code code, Stack<Integer> stack) {
-		char opcode = code.nextOpCode();
-		if (opcode == SPACE) {
-			int divisor = stack.pop();
-			int dividend = stack.pop();
-			if (divisor == 0) {		// floating point divide by 0.0 doesn't fail!
-				throw new ArithmeticException("Divide by zero");
-			}
-			int result = (int)Math.floorDiv(dividend, divisor);
-			stack.push(result);
-		} else if (opcode == TAB) {
-			int divisor = stack.pop();
-			int dividend = stack.pop();
-			if (divisor == 0) {		// floating point divide by 0.0 doesn't fail!
-				throw new ArithmeticException("Divide by zero");
+
+		private void increment(int local, int amount) {
+			code.u1(IINC).u1(local).u1(amount);
+		}
+
+		private void pushConstant(int value) {
+			if (value >= -1 && value <= 5) {
+				code.u1(ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				code.u1(BIPUSH).u1(value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				code.u1(SIPUSH).u2(value);
+			} else {
+				int index = pool.integer(value);
+				if (index < 256) {
+					code.u1(LDC).u1(index);
+				} else {
+					code.u1(LDC_W).u2(index);
+				}
 			}
-			int result = (int)Math.floorMod(dividend, divisor);
-			stack.push(result);
-		} else {
-			throw new IllegalStateException("TAB SPACE TAB LF is invalid IMP sequence");
 		}
-	}
-	
-	
-	interface ICode {
-		public char nextOpCode();
-		public boolean isCompleted();
-	}
 
-	private static class Label {
-		private String label;
-		private int ip;
-		private int declarations = 1;
+		private void invokeStatic(String name, String descriptor) {
+			code.u1(INVOKESTATIC).u2(pool.methodRef(CONTEXT, name, descriptor));
+		}
 
-		public Label(String label, int ip) {
-			this.label = label;
-			this.ip = ip;
+		private void invokeContext(String name, String descriptor) {
+			code.u1(INVOKEVIRTUAL).u2(pool.methodRef(CONTEXT, name, descriptor));
 		}
 
-		public void addDeclarationCount() {
-			++declarations;
+		private void branchTo(int opcode, int target) {
+			int start = code.size();
+			code.u1(opcode);
+			fixups.add(new int[] { start, code.size(), target, 2 });
+			code.u2(0);
 		}
 
-		public String getLabel() {
-			return label;
+		private int branchForward(int opcode) {
+			int start = code.size();
+			code.u1(opcode).u2(0);
+			return start;
 		}
 
-		public int getIp() {
-			return ip;
+		private void patchForward(int start) {
+			code.putShort(start + 1, code.size() - start);
 		}
 
-		public int getDeclarations() {
-			return declarations;
+		private byte[] writeClass() {
+			final int thisClass = pool.classRef(CLASS_NAME);
+			final int superClass = pool.classRef("java/lang/Object");
+			final int name = pool.utf8("run");
+			final int descriptor = pool.utf8("(L" + CONTEXT + ";)V");
+			final int codeAttribute = pool.utf8("Code");
+
+			final ClassFileBuffer classFile = new ClassFileBuffer();
+			classFile.u4(0xCAFEBABE).u2(0).u2(49);
+			pool.writeTo(classFile);
+			classFile.u2(0x0031).u2(thisClass).u2(superClass);
+			classFile.u2(0);		// interfaces
+			classFile.u2(0);		// fields
+			classFile.u2(1);		// methods
+			classFile.u2(0x0009).u2(name).u2(descriptor).u2(1);
+			classFile.u2(codeAttribute).u4(12 + code.size());
+			classFile.u2(8).u2(maxLocals).u4(code.size());
+			classFile.append(code);
+			classFile.u2(0);		// exception table
+			classFile.u2(0);		// code attributes
+			classFile.u2(0);		// class attributes
+			return classFile.toByteArray();
 		}
 	}
-	
-	private static class CodeScanner implements ICode {
-		private List<Character> code = new ArrayList<>();
-		private int ip = 0;
-		
-		public CodeScanner(String opcodes) {
-			for (char opcode : opcodes.toCharArray()) {
-				code.add(opcode);
-			}
+
+	private static class ConstantPool {
+		private final ClassFileBuffer entries = new ClassFileBuffer();
+		private final Map<String, Integer> indexes = new HashMap<>();
+		private int count = 1;
+
+		public int utf8(String value) {
+			return intern("U" + value, () -> {
+				final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+				entries.u1(1).u2(bytes.length).append(bytes);
+			});
 		}
-		
-		@Override
-		public char nextOpCode() {
-			if (isCompleted()) {
-				return 0;
-			}
-			return code.get(ip++);
+
+		public int integer(int value) {
+			return intern("I" + value, () -> entries.u1(3).u4(value));
 		}
 
-		@Override
-		public boolean isCompleted() {
-			return ip >= code.size();
+		public int string(String value) {
+			final int utf8 = utf8(value);
+			return intern("S" + value, () -> entries.u1(8).u2(utf8));
 		}
-		
-		public int getInstructionPointer() {
-			return ip;
+
+		public int classRef(String name) {
+			final int utf8 = utf8(name);
+			return intern("C" + name, () -> entries.u1(7).u2(utf8));
 		}
 
-		public Map<String, Label> extractLabels() {
-			final Map<String, Label> labels = new HashMap<>();
-			while (!isCompleted()) {
-				char imp = nextOpCode();
-				char second = nextOpCode();
-				if (imp == SPACE) {
-					if (second == SPACE) {
-						extractNumber(this);
-					} else if (second == TAB) {
-						char third = nextOpCode();
-						if (third == TAB) {
-//							throw new IllegalStateException("SPACE TAB TAB is invalid IMP sequence");
-						} else {
-							extractNumber(this);
-						}
-					} else {
-						nextOpCode();
-					}
-				} else if (imp == TAB) {
-					if (second == SPACE) {
-						char third = nextOpCode();
-						if (third == SPACE) {
-							nextOpCode();
-						} else if (third == TAB) {
-							char fourth = nextOpCode();
-							if (fourth == LF) {
-//								throw new IllegalStateException("TAB SPACE TAB LF is invalid IMP sequence");
-							}
-						}
-					} else if (second == TAB) {
-						char third = nextOpCode();
-						if (third == LF) {
-//							throw new IllegalStateException("TAB TAB LF is invalid IMP sequence");
-						}
-					} else {		// LF
-						char third = nextOpCode();
-						if (third == LF) {
-//							throw new IllegalStateException("TAB LF LF is invalid IMP sequence");
-						} else {
-							char fourth = nextOpCode();
-							if (fourth == LF) {
-//								throw new IllegalStateException("TAB LF SPACE/TAB LF is invalid IMP sequence");
-							}
-						}
-					}
-				} else {	// LF
-					if (second == SPACE) {
-						char third = nextOpCode();
-						String label = extractLabel(this);
-						if (third == SPACE) {
-							if (labels.containsKey(label)) {
-								labels.get(label).addDeclarationCount();
-//								throw new IllegalStateException("Duplicated label found for " + label);
-							} else {
-								labels.put(label, new Label(label, getInstructionPointer()));
-							}
-						} 
-					} else if (second == TAB) {
-						char third = nextOpCode();
-						if (third != LF) {
-							extractLabel(this);
-						}
-					} else {		// LF
-						char third = nextOpCode();
-						if (third != LF) {
-//							throw new IllegalStateException("LF LF SPACE/TAB is invalid IMP sequence");
-						}
-					}
-				}
+		public int methodRef(String owner, String name, String descriptor) {
+			final int classIndex = classRef(owner);
+			final int nameIndex = utf8(name);
+			final int descriptorIndex = utf8(descriptor);
+			final int nameAndType = intern("N" + name + descriptor,
+					() -> entries.u1(12).u2(nameIndex).u2(descriptorIndex));
+			return intern("M" + owner + "." + name + descriptor, () -> entries.u1(10).u2(classIndex).u2(nameAndType));
+		}
+
+		public void writeTo(ClassFileBuffer classFile) {
+			classFile.u2(count);
+			classFile.append(entries);
+		}
+
+		private int intern(String key, Runnable writer) {
+			Integer index = indexes.get(key);
+			if (index == null) {
+				writer.run();
+				index = count++;
+				indexes.put(key, index);
 			}
-			return labels;
+			return index;
 		}
 	}
 
+	// minimal big-endian byte sink for class file generation
+	private static class ClassFileBuffer {
+		private byte[] bytes = new byte[256];
+		private int size = 0;
 
-	private static class Code implements ICode {
-		private List<Character> code = new ArrayList<>();
-		private Map<String, Label> labels;
-		private int ip = 0;
-		
-		private Stack<Integer> subStack = new Stack<>();
+		public ClassFileBuffer u1(int value) {
+			ensure(1);
+			bytes[size++] = (byte)value;
+			return this;
+		}
 
-		public Code(String rawCode) {
-			final String opcodes = reduceCode(rawCode);
-			for (char opcode : opcodes.toCharArray()) {
-				code.add(opcode);
-			}
-			
-			CodeScanner scanner = new CodeScanner(opcodes);
-			labels = scanner.extractLabels();
+		public ClassFileBuffer u2(int value) {
+			return u1(value >>> 8).u1(value);
 		}
-		
-		@Override
-		public char nextOpCode() {
-			if (isCompleted()) {
-				throw new IllegalStateException("Request for opcode beyond code boundaries");
-			}
-			return code.get(ip++);
+
+		public ClassFileBuffer u4(int value) {
+			return u2(value >>> 16).u2(value);
 		}
-		
-		@Override
-		public boolean isCompleted() {
-			return ip >= code.size();
+
+		public ClassFileBuffer append(byte[] data) {
+			ensure(data.length);
+			System.arraycopy(data, 0, bytes, size, data.length);
+			size += data.length;
+			return this;
 		}
-		
-		public void callSub(String label) {
-			if (!labels.containsKey(label)) {
-				throw new IllegalStateException("Calling non-existent subroutine at " + label);
-			}
-			subStack.push(ip);
 
-			jump(label);
+		public ClassFileBuffer append(ClassFileBuffer other) {
+			return append(other.toByteArray());
 		}
-		
-		public void returnFromSub() {
-			ip = subStack.pop();
+
+		public void putShort(int position, int value) {
+			bytes[position] = (byte)(value >>> 8);
+			bytes[position + 1] = (byte)value;
+		}
+
+		public void putInt(int position, int value) {
+			putShort(position, value >>> 16);
+			putShort(position + 2, value);
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public byte[] toByteArray() {
+			return Arrays.copyOf(bytes, size);
 		}
-		
-		public void jump(String label) {
-			if (!labels.containsKey(label)) {
-				throw new IllegalStateException("Calling non-existent jump at " + label);
-			}
 
-			Label match = labels.get(label);
-			if (match.getDeclarations() > 1) {
-				throw new IllegalStateException("Duplicated label found for " + label);
+		private void ensure(int extra) {
+			if (size + extra > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, size + extra));
 			}
-			ip = match.getIp();
 		}
 	}
-}
\ No newline at end of file
+}
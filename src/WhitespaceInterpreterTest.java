@@ -1,11 +1,30 @@
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class WhitespaceInterpreterTest {
 
@@ -102,6 +121,21 @@ public class WhitespaceInterpreterTest {
 		assertEquals("10", WhitespaceInterpreter.execute("   \t\t\n   \t \t \n\t\t    \t\t\n\t\t\t\t\n \t\n\n\n", null));
 	}
 
+	@Test
+	public void givenUnsetAddress_whenRetrieved_thenYieldsZero() {
+		assertEquals("0", WhitespaceInterpreter.execute("   \t \t\n\t\t\t\t\n \t\n\n\n", null));
+	}
+
+	@Test
+	public void givenNegativeAndDistantAddresses_whenStoredAndRetrieved_thenYieldsValues() {
+		// store 7 at -5 and 9 at 2^30, then print both back
+		assertEquals("79", WhitespaceInterpreter.execute(
+				"  \t\t \t\n   \t\t\t\n\t\t "
+				+ "   \t" + "000000000000000000000000000000".replace('0', ' ') + "\n   \t  \t\n\t\t "
+				+ "  \t\t \t\n\t\t\t\t\n \t"
+				+ "   \t" + "000000000000000000000000000000".replace('0', ' ') + "\n\t\t\t\t\n \t\n\n\n", null));
+	}
+
 	@Test
 	public void givenInputStream_whenReadingCharacters_thenOutputsCharactersInOrder() {
 		final String characters = "B8";
@@ -163,6 +197,16 @@ public class WhitespaceInterpreterTest {
 		assertEquals("-12", WhitespaceInterpreter.execute("\n \n\t\t\n   \t\t  \n\t\n \t\n\n\n\n  \t\t\n  \t\t\t  \n\t\n \t\n\n\n", null));
 	}
 	
+	@Test(expected = IllegalStateException.class)
+	public void givenJumpToUndefinedLabel_whenLoading_thenFailsBeforeRunning() {
+		WhitespaceInterpreter.execute("\n\n\n\n \n\t\n", null);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void givenDuplicatedLabel_whenLoading_thenFails() {
+		WhitespaceInterpreter.execute("\n  \t\n\n  \t\n\n\n\n", null);
+	}
+
 	@Test(expected = Exception.class)
 	public void divisionByZero() {
 		assertEquals("", WhitespaceInterpreter.execute("   \t   \n    \n\t \t \t\n \t\n\n\n", null));
@@ -193,11 +237,551 @@ public class WhitespaceInterpreterTest {
 		assertEquals("321", WhitespaceInterpreter.execute("   \n   \t\n   \t \n   \t\t\n\n  \n\t\n \t \n \n\t  \n\n \n\n\n   \n\n\n\n", null));
 	}
 	
+	@Test
+	public void givenInvalidSequenceAfterEnd_whenExecuted_thenEndsWithoutError() {
+		assertEquals("1", WhitespaceInterpreter.execute("   \t\n\t\n \t\n\n\n\t\n\n", null));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void givenProgramCutOffMidInstruction_whenReached_thenFails() {
+		WhitespaceInterpreter.execute("   \t\n\t\n \t   \t", null);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void givenEmptyStack_whenDiscarding_thenFails() {
+		WhitespaceInterpreter.execute(" \n\n\n\n\n", null);
+	}
+
+	@Test
+	public void givenCertainUnderflow_whenLoading_thenFailsBeforeRunning() {
+		try {
+			WhitespaceInterpreter.compile("   \t\n \n\t\n\n\n");		// push 1; swap; end
+			fail();
+		} catch (IllegalStateException ex) {
+			assertEquals("Stack underflow: SWAP needs 2 values but always runs on a stack of 1", ex.getMessage());
+		}
+	}
+
+	@Test
+	public void givenUnderflowOnBranchNotTaken_whenLoading_thenRuns() {
+		// push 0; jz 1; discard; label 1; end
+		assertEquals("", WhitespaceInterpreter.execute("   \n\n\t \t\n \n\n\n  \t\n\n\n\n", null));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void givenDeepStack_whenSlidingAll_thenOnlyTopRemains() {
+		final StringBuilder code = new StringBuilder();
+		for (int count = 0; count < 200; count++) {
+			code.append("   \t\n");
+		}
+		code.append("   \t \n \t\n \t\t\t\t\t\t\t\t\n\t\n \t \n\n\n\n\n");
+		WhitespaceInterpreter.execute(code.toString(), null);
+	}
+
 	@Test(expected = Exception.class)
 	public void testSlideN3() {
 		assertEquals("", WhitespaceInterpreter.execute("   \t\n   \t \n   \t\t\n \t\n\t\t     \n\t\n \t\t\n \t\n\n\n", null));
 	}
 
+	@Test
+	public void givenCountdownWithFusableIdioms_whenExecuted_thenOutputsEachValue() {
+		// dup; jz / push 1; sub / push 0; swap; store / push 0; retrieve inside a loop
+		final String program = "   \t\t\n\n  \t\n \n \n\t \t\t\n \n \t\n \t   \t\n\t  \t"
+				+ "    \n \n\t\t\t     \n\t\t\t\n \n\t\n\n  \t\t\n\n\n\n";
+		assertEquals("321", WhitespaceInterpreter.execute(program, null));
+		assertEquals("321", WhitespaceInterpreter.executeCompiled(program, null));
+	}
+
+	@Test
+	public void givenJumpBetweenConstants_whenExecuted_thenDoesNotFoldAcrossTarget() {
+		// push 2; jump L; push 7; L: push 3; add; out
+		assertEquals("5", WhitespaceInterpreter.execute(
+				"   \t \n\n \n\t\n   \t\t\t\n\n  \t\n   \t\t\n\t   \t\n \t\n\n\n", null));
+	}
+
+	@Test
+	public void givenFillCopyAndPrintLoops_whenExecuted_thenMatchesStepByStepRun() {
+		final String program = "    \n\n  \t\n \n    \t\t\n\t  \t\n\t \t \n"				// fill 10..12 with 'A'
+				+ " \n    \t \t \n\t      \t     \t\n\t\t    \t\n\t   \n \n\t\n\n  \t \n \n\n"
+				+ "    \n\n  \t\t\n \n    \t\t\n\t  \t\n\t \t  \n"				// copy 10..12 to 20..22
+				+ " \n    \t \t  \n\t    \t  \t\n   \t \t \n\t   \t\t\t\t\t    \t\n\t   \n \n\t\t\n\n  \t  \n \n\n"
+				+ "   \t \t  \n\n  \t \t\n \n \t\t\t \n \n\t \t\t \n"				// print from 20 up to the 0 at 23
+				+ "\t\n     \t\n\t   \n \n\t \t\n\n  \t\t \n \n\n \n\n\n\n\n";
+		final ByteArrayOutputStream whole = new ByteArrayOutputStream();
+		final ByteArrayOutputStream stepped = new ByteArrayOutputStream();
+		final WhitespaceInterpreter.ExecutionResult bulk = WhitespaceInterpreter.executeStreaming(program, null, whole);
+		// limits count every instruction, so they run the loops as written
+		final WhitespaceInterpreter.ExecutionResult steps = WhitespaceInterpreter.executeStreaming(program, null, stepped,
+				WhitespaceInterpreter.ExecutionOptions.DEFAULT.withMaxInstructions(1_000));
+		assertEquals("AAA", whole.toString());
+		assertEquals("AAA", stepped.toString());
+		assertEquals(steps.getInstructionCount(), bulk.getInstructionCount());
+	}
+
+	@Test
+	public void givenSubroutineAndJumps_whenCompiled_thenMatchesInterpreter() {
+		final String[] programs = { "\n \t\t\t\n\n \t\t\t\n\n\n\n\n  \t\t\n   \t\n\t\n \t\n\t\n",
+				"   \t\n   \t\t\n   \n   \t \n   \n   \t\n\n  \n\t\n \t\n\t \n\n\n\n",
+				"   \t\n   \t \n   \t\t\n   \t  \n   \t\t \n   \t \t\n   \t\t\t\n \n\t \t\n \t\t\n\t\n \t\t\n \t\t\n \t\t\n \t\n\n\n",
+				"  \t\t   \n   \t\t\n\t \t \t\n \t\n\n\n" };
+		for (String program : programs) {
+			assertEquals(WhitespaceInterpreter.execute(program, null), WhitespaceInterpreter.executeCompiled(program, null));
+		}
+	}
+
+	@Test
+	public void givenInputStream_whenCompiledProgramReadsNumber_thenOutputsNumber() {
+		final InputStream inputStream = new ByteArrayInputStream("0xD5F07\n".getBytes());
+		assertEquals("876295",
+				WhitespaceInterpreter.executeCompiled("   \t\n\t\n\t\t   \t\n\t\t\t\t\n \t\n\n\n", inputStream));
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void givenDivisionByZero_whenCompiled_thenFails() {
+		WhitespaceInterpreter.executeCompiled("   \t   \n    \n\t \t \t\n \t\n\n\n", null);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void givenMissingEnd_whenCompiled_thenFailsWithUncleanTermination() {
+		WhitespaceInterpreter.executeCompiled("   \t\n\t\n \t", null);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void givenEmptyStack_whenCompiledProgramAdds_thenFails() {
+		WhitespaceInterpreter.executeCompiled("   \t\n\t   \n\n\n", null);
+	}
+
+	@Test
+	public void givenProgram_whenRunCompiledRepeatedly_thenClassIsGeneratedOnce() {
+		// read a number and print it
+		final WhitespaceInterpreter.Program program = WhitespaceInterpreter.compile("   \t\n\t\n\t\t   \t\n\t\t\t\t\n \t\n\n\n");
+		assertEquals("12", program.runCompiled(new ByteArrayInputStream("12\n".getBytes()), null,
+				WhitespaceInterpreter.ExecutionOptions.DEFAULT));
+		final Object compiled = program.getCompiled();
+		assertNotNull(compiled);
+		assertEquals("-7", program.runCompiled(new ByteArrayInputStream("-7\n".getBytes()), null,
+				WhitespaceInterpreter.ExecutionOptions.DEFAULT));
+		assertSame(compiled, program.getCompiled());
+	}
+
+	@Test(expected = WhitespaceInterpreter.ExecutionLimitException.class)
+	public void givenLimits_whenRunCompiled_thenFallsBackToInterpreterAndEnforcesThem() {
+		// label 1; jump 1
+		WhitespaceInterpreter.compile("\n  \t\n\n \n\t\n").runCompiled(null, null,
+				WhitespaceInterpreter.ExecutionOptions.DEFAULT.withMaxInstructions(1000));
+	}
+
+	@Test
+	public void givenValuesShuffledAcrossBlocks_whenCompiled_thenMatchesInterpreter() {
+		// count n down from 3 printing n and n * n through dup, swap and mul; then push 7 8 9, slide 2, print
+		final String program = "   \t\t\n\n  \t\n \n  \n \t  \n \n\t \n \t\n \t \n\t\t\n \t   \t\n\t  \t \n \n\t \t \n\n \n\t\n"
+				+ "\n  \t \n \n\n   \t\t\t\n   \t   \n   \t  \t\n \t\n \t \n\t\n \t\n\n\n";
+		assertEquals("3924119", WhitespaceInterpreter.execute(program, null));
+		assertEquals("3924119", WhitespaceInterpreter.executeCompiled(program, null));
+	}
+
+	@Test
+	public void givenNewlinePolicy_whenPrinting_thenFlushesOncePerLineAndAtEnd() {
+		final int[] flushes = { 0 };
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream() {
+			@Override
+			public void flush() {
+				flushes[0]++;
+			}
+		};
+		// prints "A\nA\n" then "B"
+		final String program = "   \t     \t\n\t\n     \t \t \n\t\n     \t     \t\n\t\n     \t \t \n\t\n  "
+				+ "   \t    \t \n\t\n  \n\n\n";
+		assertEquals("A\nA\nB", WhitespaceInterpreter.execute(program, null, stream,
+				EnumSet.of(WhitespaceInterpreter.FlushPolicy.NEWLINE, WhitespaceInterpreter.FlushPolicy.TERMINATION)));
+		assertEquals("A\nA\nB", stream.toString());
+		assertEquals(4, flushes[0]);		// preflush, two newlines, termination
+	}
+
+	@Test
+	public void givenNonAsciiCharacter_whenPrintedToStream_thenEncodesWithDefaultCharset() {
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		// U+00E9
+		assertEquals("\u00e9", WhitespaceInterpreter.execute("   \t\t\t \t  \t\n\t\n  \n\n\n", null, stream));
+		assertEquals(Arrays.toString("\u00e9".getBytes()), Arrays.toString(stream.toByteArray()));
+	}
+
+	@Test
+	public void givenFailureAfterOutput_whenBuffered_thenOutputStillReachesStream() {
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		try {
+			WhitespaceInterpreter.execute("   \t\n\t\n \t\t   ", null, stream);
+		} catch (IllegalStateException ex) {
+		}
+		assertEquals("1", stream.toString());
+	}
+
+	@Test
+	public void givenProgram_whenStreamed_thenWritesOutputAndReportsCompletion() {
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		final WhitespaceInterpreter.ExecutionResult result = WhitespaceInterpreter.executeStreaming(
+				"   \t \t \n   \t\t\n\t   \t\n \t\n\n\n", null, stream);
+		assertEquals("13", stream.toString());
+		assertEquals(WhitespaceInterpreter.ExecutionResult.Status.COMPLETED, result.getStatus());
+		assertEquals(3, result.getInstructionCount());		// push 10; push 3; add is folded into one push
+	}
+
+	@Test
+	public void givenDivisionByZero_whenStreamed_thenReportsFailure() {
+		final WhitespaceInterpreter.ExecutionResult result = WhitespaceInterpreter.executeStreaming(
+				"   \t   \n    \n\t \t \t\n \t\n\n\n", null, new ByteArrayOutputStream());
+		assertEquals(WhitespaceInterpreter.ExecutionResult.Status.FAILED, result.getStatus());
+		assertEquals("Divide by zero", result.getExitReason());
+		assertEquals(ArithmeticException.class, result.getFailure().getClass());
+	}
+
+	@Test
+	public void givenCompiledProgram_whenRunWithDifferentInputs_thenEachRunIsIndependent() {
+		// read a number into heap[1], then print it
+		final WhitespaceInterpreter.Program program = WhitespaceInterpreter.compile(
+				"   \t\n\t\n\t\t   \t\n\t\t\t\t\n \t\n\n\n");
+		assertEquals("123", program.run(new ByteArrayInputStream("123\n".getBytes()), null));
+		assertEquals("16", program.run(new ByteArrayInputStream("0x10\n".getBytes()), null));
+	}
+
+	@Test
+	public void givenProgramCache_whenSameSourceRequested_thenCountsHitsAndMisses() {
+		final WhitespaceInterpreter.ProgramCache cache = new WhitespaceInterpreter.ProgramCache(2);
+		final String one = "   \t\n\t\n \t\n\n\n";
+		final String two = "   \t \n\t\n \t\n\n\n";
+		final String three = "   \t\t\n\t\n \t\n\n\n";
+		final WhitespaceInterpreter.Program first = cache.get(one);
+		assertSame(first, cache.get(one));
+		cache.get(two);
+		cache.get(three);		// evicts one, the least recently used
+		assertEquals(2, cache.size());
+		assertNotSame(first, cache.get(one));
+		assertEquals(1, cache.getHits());
+		assertEquals(4, cache.getMisses());
+		assertEquals("1", first.run(null, null));
+	}
+
+	@Test
+	public void givenCommentedSource_whenLoadedFromStreamReaderOrFile_thenMatchesStringLoad() throws IOException {
+		// push 1; output number; end, with comments around and inside each instruction
+		final String code = "push  caf\u00e9 \t\nout\t\n \u2603\tend\n\n\n";
+		final WhitespaceInterpreter.Program expected = WhitespaceInterpreter.compile(code);
+		final byte[] bytes = code.getBytes(StandardCharsets.UTF_8);
+		final Path file = Files.createTempFile("whitespace", ".ws");
+		try {
+			Files.write(file, bytes);
+			for (WhitespaceInterpreter.Program program : Arrays.asList(
+					WhitespaceInterpreter.compile(new ByteArrayInputStream(bytes)),
+					WhitespaceInterpreter.compile(new StringReader(code)),
+					WhitespaceInterpreter.compile(file))) {
+				assertEquals("1", program.run(null, null));
+				assertEquals(expected.getSourceHash(), program.getSourceHash());
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void givenEmptyStream_whenLoaded_thenThrows() {
+		WhitespaceInterpreter.compile(new ByteArrayInputStream(new byte[0]));
+	}
+
+	@Test
+	public void givenValuesBeyondLongRange_whenRunUnbounded_thenPromotesAndDemotes() {
+		final String pushTwoTo40 = "   \t" + " ".repeat(40) + "\n";
+		final String pushTwoTo62 = "   \t" + " ".repeat(62) + "\n";
+		final String code =
+				// heap[1] = (2^40)^2, then print it back
+				"   \t\n" + pushTwoTo40 + " \n \t  \n" + "\t\t " + "   \t\n\t\t\t" + "\t\n \t"
+				// 2^62 + 2^62 overflows a long; subtracting 2^62 fits again
+				+ pushTwoTo62 + " \n \t   " + pushTwoTo62 + "\t  \t" + "\t\n \t"
+				+ "\n\n\n";
+		final WhitespaceInterpreter.ExecutionOptions options = WhitespaceInterpreter.ExecutionOptions.DEFAULT
+				.withNumericMode(WhitespaceInterpreter.NumericMode.UNBOUNDED);
+		assertEquals("1208925819614629174706176" + "4611686018427387904",
+				WhitespaceInterpreter.execute(code, null, null, options));
+	}
+
+	@Test
+	public void givenLargeNumberInput_whenRunUnbounded_thenReadsAndDividesIt() {
+		// heap[0] = read number; print heap[0] / -3, rounded down
+		final String code = "    \n\t\n\t\t    \n\t\t\t  \t\t\t\n\t \t \t\n \t\n\n\n";
+		final WhitespaceInterpreter.ExecutionOptions options = WhitespaceInterpreter.ExecutionOptions.DEFAULT
+				.withNumericMode(WhitespaceInterpreter.NumericMode.UNBOUNDED);
+		assertEquals("-33333333333333333333333334", WhitespaceInterpreter.execute(code,
+				new ByteArrayInputStream("100000000000000000000000000\n".getBytes()), null, options));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void givenLiteralBeyondIntRange_whenRunAsInt_thenThrows() {
+		WhitespaceInterpreter.execute("   \t" + " ".repeat(40) + "\n\t\n \t\n\n\n", null);
+	}
+
+	@Test
+	public void givenProfiler_whenCountdownRuns_thenReportsOpcodesAndLabels() {
+		// push 3; s: dup; print; push 1; sub; dup; jz t; jump s; t: end
+		final String code = "   \t\t\n\n   \n \n \t\n \t   \t\n\t  \t \n \n\t \t\n\n \n \n\n  \t\n\n\n\n";
+		final WhitespaceInterpreter.Profiler profiler = new WhitespaceInterpreter.Profiler();
+		assertEquals("321", WhitespaceInterpreter.execute(code, null, null,
+				WhitespaceInterpreter.ExecutionOptions.DEFAULT.withProfiler(profiler)));
+		assertEquals(Long.valueOf(3), profiler.getOpCodeCounts().get("ADD_IMMEDIATE"));
+		assertEquals(Long.valueOf(3), profiler.getOpCodeCounts().get("DUPLICATE_JUMP_ZERO"));
+		assertEquals(Long.valueOf(2), profiler.getOpCodeCounts().get("JUMP"));
+		assertEquals(16, profiler.getInstructionCount());
+		assertEquals(Long.valueOf(2), profiler.getLabelHits().get("s"));
+		assertEquals(Long.valueOf(1), profiler.getLabelHits().get("t"));
+		assertEquals(2, profiler.getMaxStackDepth());
+		assertEquals(3, profiler.getOutputBytes());
+	}
+
+	@Test
+	public void givenInfiniteLoop_whenLimited_thenStopsWithTheLimitReached() {
+		// s: push 1; jump s
+		final String pushForever = "\n   \n   \t\n\n \n \n";
+		// s: jump s
+		final String jumpForever = "\n   \n\n \n \n";
+		// s: call s
+		final String recurseForever = "\n   \n\n \t \n";
+		final WhitespaceInterpreter.ExecutionOptions options = WhitespaceInterpreter.ExecutionOptions.DEFAULT;
+		assertLimit(WhitespaceInterpreter.ExecutionLimitException.Limit.INSTRUCTIONS, pushForever,
+				options.withMaxInstructions(1000));
+		assertLimit(WhitespaceInterpreter.ExecutionLimitException.Limit.STACK_DEPTH, pushForever,
+				options.withMaxStackDepth(1000));
+		assertLimit(WhitespaceInterpreter.ExecutionLimitException.Limit.TIME, jumpForever,
+				options.withTimeout(Duration.ofMillis(10)));
+		assertLimit(WhitespaceInterpreter.ExecutionLimitException.Limit.CALL_DEPTH, recurseForever,
+				options.withMaxCallDepth(1000));
+	}
+
+	@Test
+	public void givenCancellation_whenTriggeredFromAnotherThread_thenRunStops() throws InterruptedException {
+		final WhitespaceInterpreter.CancellationToken cancellation = new WhitespaceInterpreter.CancellationToken();
+		final Thread canceller = new Thread(() -> {
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			cancellation.cancel();
+		});
+		canceller.start();
+		// s: jump s, until cancelled
+		assertLimit(WhitespaceInterpreter.ExecutionLimitException.Limit.CANCELLED, "\n   \n\n \n \n",
+				WhitespaceInterpreter.ExecutionOptions.DEFAULT.withCancellation(cancellation));
+		canceller.join();
+	}
+
+	private static void assertLimit(WhitespaceInterpreter.ExecutionLimitException.Limit limit, String code,
+			WhitespaceInterpreter.ExecutionOptions options) {
+		final WhitespaceInterpreter.ExecutionResult result = WhitespaceInterpreter.executeStreaming(
+				code, null, new ByteArrayOutputStream(), options);
+		assertEquals(WhitespaceInterpreter.ExecutionResult.Status.FAILED, result.getStatus());
+		assertEquals(limit, ((WhitespaceInterpreter.ExecutionLimitException)result.getFailure()).getLimit());
+	}
+
+	@Test
+	public void givenSnapshotBeforeInput_whenRunWithSeveralInputs_thenRunsAreIndependent() {
+		// heap[5] = 7; print '?' / read n into 0; print heap[n]; heap[5] = n
+		final String program = "   \t \t\n   \t\t\t\n\t\t    \t\t\t\t\t\t\n\t\n  "
+				+ "   \n\t\n\t\t   \n\t\t\t\t\t\t\t\n \t"
+				+ "   \t \t\n   \n\t\t\t\t\t \n\n\n";
+		final WhitespaceInterpreter.Snapshot snapshot = WhitespaceInterpreter.compile(program).snapshot();
+		assertEquals(6, snapshot.getInstructionCount());		// up to the push before the read
+		assertEquals("?7", snapshot.run(new ByteArrayInputStream("5\n".getBytes()), null));
+		assertEquals("?7", snapshot.run(new ByteArrayInputStream("5\n".getBytes()), null));
+		assertEquals("?0", snapshot.run(new ByteArrayInputStream("0\n".getBytes()), null));
+	}
+
+	@Test
+	public void givenRunStoppedByLimit_whenCheckpointedAndRestored_thenFinishesTheOutput() {
+		// read n; L: print n; n = n - 1; unless n is 0, jump L
+		final String source = "   \n\t\n\t\t   \n\t\t\t\n  \t\n \n \t\n \t   \t\n\t  \t \n \n\t \t \n\n \n\t\n\n  \t \n\n\n\n";
+		final WhitespaceInterpreter.Program program = WhitespaceInterpreter.compile(source);
+		final ByteArrayOutputStream first = new ByteArrayOutputStream();
+		final WhitespaceInterpreter.ExecutionResult stopped = program.runStreaming(new ByteArrayInputStream("5\n".getBytes()),
+				first, WhitespaceInterpreter.ExecutionOptions.DEFAULT.withMaxInstructions(12));
+		assertEquals("54", first.toString());
+
+		final ByteArrayOutputStream checkpoint = new ByteArrayOutputStream();
+		((WhitespaceInterpreter.ExecutionLimitException)stopped.getFailure()).getSnapshot().write(checkpoint);
+		final WhitespaceInterpreter.Snapshot restored = WhitespaceInterpreter.Snapshot.read(
+				new ByteArrayInputStream(checkpoint.toByteArray()), WhitespaceInterpreter.compile(source));
+		assertEquals(13, restored.getInstructionCount());
+		assertEquals("321", restored.run(new ByteArrayInputStream("5\n".getBytes()), null));
+	}
+
+	@Test
+	public void givenNumbersSpanningManyBuffers_whenReadFromStreamOrFile_thenEachIsParsed() throws IOException {
+		// read a count into heap[0], then that many numbers, printing each on its own line
+		final WhitespaceInterpreter.Program program = WhitespaceInterpreter.compile(
+				"    \n\t\n\t\t\n  \t\n    \n\t\t\t\n\t \t \n   \t\n\t\n\t\t   \t\n\t\t\t\t\n \t   \t \t \n\t\n  "
+				+ "    \n    \n\t\t\t   \t\n\t  \t\t\t \n \n\t\n\n  \t \n\n\n\n");
+		final StringBuilder input = new StringBuilder("3000\n");
+		final StringBuilder expected = new StringBuilder();
+		for (int value = 0; value < 3000; value++) {
+			final int number = value % 5 == 4 ? -value : value * 7919;
+			final String[] forms = { Integer.toString(number), "0x" + Integer.toHexString(number),
+					"0b" + Integer.toBinaryString(number), "0" + Integer.toOctalString(number), Integer.toString(number) };
+			input.append(forms[value % 5]).append('\n');
+			expected.append(number).append('\n');
+		}
+		final byte[] bytes = input.toString().getBytes(StandardCharsets.UTF_8);
+		final Path file = Files.createTempFile("whitespace", ".in");
+		try {
+			Files.write(file, bytes);
+			final WhitespaceInterpreter.ExecutionOptions options = WhitespaceInterpreter.ExecutionOptions.DEFAULT;
+			assertEquals(expected.toString(), program.run(new ByteArrayInputStream(bytes), null));
+			assertEquals(expected.toString(), program.runFromFile(file, null, options));
+			assertEquals(expected.toString(), program.run(new ByteArrayInputStream(bytes), null,
+					options.withNumericMode(WhitespaceInterpreter.NumericMode.UNBOUNDED)));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void givenErrorsPastTheReachedCode_whenExecutedLazily_thenRunsWhatIsReached() {
+		// push 'A'; print; jump 1; jump 3 (undefined); label 1; push 'B'; print; end; label 1 again
+		final String code = "   \t     \t\n\t\n  \n \n\t\n\n \n\t\t\n\n  \t\n   \t    \t \n\t\n  \n\n\n\n  \t\n";
+		final WhitespaceInterpreter.ExecutionOptions options = WhitespaceInterpreter.ExecutionOptions.DEFAULT;
+		try {
+			WhitespaceInterpreter.compile(code);
+			fail();
+		} catch (IllegalStateException ex) {
+			assertEquals("Duplicated label found for t", ex.getMessage());
+		}
+		assertEquals("AB", WhitespaceInterpreter.executeLazily(code, null, null, options));
+		assertEquals("AB", WhitespaceInterpreter.executeLazily(
+				new ByteArrayInputStream(code.getBytes(StandardCharsets.UTF_8)), null, null, options));
+		try {
+			// the undefined jump is reached without the first one
+			WhitespaceInterpreter.executeLazily(code.replaceFirst("\n \n\t\n", ""), null, null, options);
+			fail();
+		} catch (IllegalStateException ex) {
+			assertEquals("Calling non-existent jump at tt", ex.getMessage());
+		}
+		// read a number into heap[1], print it, divide 1 by it
+		final String divide = "   \t\n\t\n\t\t   \t\n\t\t\t\t\n \t   \t\n   \t\n\t\t\t\t \t \n\n\n";
+		assertEquals(WhitespaceInterpreter.execute(divide, new ByteArrayInputStream("7\n".getBytes()), null, options),
+				WhitespaceInterpreter.executeLazily(divide, new ByteArrayInputStream("7\n".getBytes()), null,
+						options.withNumericMode(WhitespaceInterpreter.NumericMode.UNBOUNDED)));
+	}
+
+	@Test
+	public void givenChainedFolds_whenExecutedLazily_thenMatchesEager() {
+		final WhitespaceInterpreter.ExecutionOptions options = WhitespaceInterpreter.ExecutionOptions.DEFAULT;
+		// push 1 four times; add; sub; mul; then print, or retrieve, and end
+		final String folds = "   \t\n   \t\n   \t\n   \t\n\t   \t  \t\t  \n";
+		for (String tail : new String[] { "\t\n \t\n\n\n", "\t\t\t\n\n\n" }) {
+			assertEquals(WhitespaceInterpreter.execute(folds + tail, null, null, options),
+					WhitespaceInterpreter.executeLazily(folds + tail, null, null, options));
+		}
+		assertEquals("-1", WhitespaceInterpreter.executeLazily(folds + "\t\n \t\n\n\n", null, null, options));
+	}
+
+	@Test
+	public void givenTraceSize_whenRunFails_thenLastInstructionsAreAttached() {
+		// push 'A'; print; push 7; dup; mul; discard; discard; end
+		final String code = "   \t     \t\n\t\n     \t\t\t\n \n \t  \n \n\n \n\n\n\n\n";
+		final List<String> expected = Arrays.asList("4: MULTIPLY (stack 2 deep, top 7)",
+				"5: DISCARD (stack 1 deep, top 49)", "6: DISCARD (stack empty)");
+		for (WhitespaceInterpreter.NumericMode mode : WhitespaceInterpreter.NumericMode.values()) {
+			final WhitespaceInterpreter.ExecutionOptions options = WhitespaceInterpreter.ExecutionOptions.DEFAULT
+					.withNumericMode(mode);
+			try {
+				WhitespaceInterpreter.execute(code, null, null, options.withTraceSize(3));
+				fail();
+			} catch (IllegalStateException ex) {
+				assertEquals("Stack underflow", ex.getMessage());
+				final WhitespaceInterpreter.ExecutionTrace trace = WhitespaceInterpreter.ExecutionTrace.of(ex);
+				assertEquals(expected, trace.getEntries());
+				assertTrue(trace.getMessage().startsWith("Last 3 of 7 instructions executed:"));
+			}
+			try {
+				WhitespaceInterpreter.execute(code, null, null, options);
+				fail();
+			} catch (IllegalStateException ex) {
+				assertNull(WhitespaceInterpreter.ExecutionTrace.of(ex));
+			}
+		}
+	}
+
+	@Test
+	public void givenRecursiveFibonacci_whenMemoized_thenSameOutputAndInstructionCount() {
+		// push 25; call fib; print; end; fib: n < 2 ? n : fib(n - 1) + fib(n - 2)
+		final WhitespaceInterpreter.Program program = WhitespaceInterpreter.compile("   \t\t  \t\n\n \t\t\n\t\n \t\n\n\n"
+				+ "\n  \t\n \n    \t \n\t  \t\n\t\t\t \n \n    \t\n\t  \t\n \t\t\n \n\t   \t \n\t  \t\n \t\t\n\t   \n\t\n"
+				+ "\n  \t \n\n\t\n");
+		final WhitespaceInterpreter.SubroutineCache cache = new WhitespaceInterpreter.SubroutineCache(100);
+		final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		final ByteArrayOutputStream memoized = new ByteArrayOutputStream();
+		final WhitespaceInterpreter.ExecutionResult expected = program.runStreaming(null, plain,
+				WhitespaceInterpreter.ExecutionOptions.DEFAULT);
+		final WhitespaceInterpreter.ExecutionResult result = program.runStreaming(null, memoized,
+				WhitespaceInterpreter.ExecutionOptions.DEFAULT.withSubroutineCache(cache));
+		assertEquals("75025", memoized.toString());
+		assertEquals(plain.toString(), memoized.toString());
+		assertEquals(expected.getInstructionCount(), result.getInstructionCount());
+		assertEquals(23, cache.getHits());
+		assertEquals(26, cache.getMisses());
+
+		// a subroutine that prints is never cached
+		final WhitespaceInterpreter.SubroutineCache unused = new WhitespaceInterpreter.SubroutineCache(100);
+		assertEquals("AB", WhitespaceInterpreter.execute("   \t     \t\n\n \t\t\n   \t    \t \n\n \t\t\n\n\n\n\n  \t\n\t\n  \n\t\n",
+				null, null, WhitespaceInterpreter.ExecutionOptions.DEFAULT.withSubroutineCache(unused)));
+		assertEquals(0, unused.getMisses());
+	}
+
+	@Test
+	public void givenBatchOfInputs_whenRunInParallel_thenResultsComeBackInOrder() {
+		// read a number into heap[1], print it, divide 1 by it
+		final WhitespaceInterpreter.Program program = WhitespaceInterpreter.compile(
+				"   \t\n\t\n\t\t   \t\n\t\t\t\t\n \t   \t\n   \t\n\t\t\t\t \t \n\n\n");
+		final List<InputStream> inputs = new ArrayList<>();
+		for (int value = 0; value < 50; value++) {
+			inputs.add(new ByteArrayInputStream((value + "\n").getBytes()));
+		}
+		try (WhitespaceInterpreter.BatchExecutor executor = new WhitespaceInterpreter.BatchExecutor(4)) {
+			final List<WhitespaceInterpreter.BatchResult> results = executor.run(program, inputs);
+			assertEquals(50, results.size());
+			assertFalse(results.get(0).isSuccess());
+			assertEquals(ArithmeticException.class, results.get(0).getFailure().getClass());
+			for (int value = 1; value < 50; value++) {
+				assertEquals(Integer.toString(value), results.get(value).getOutput());
+			}
+		}
+	}
+
+	@Test
+	public void givenRunThrowingError_whenBatched_thenFailsAloneAndLaterBatchesStillRun() {
+		// read a character into heap[0] and print it
+		final WhitespaceInterpreter.Program echo = WhitespaceInterpreter.compile("    \n\t\n\t     \n\t\t\t\t\n  \n\n\n");
+		final InputStream broken = new InputStream() {
+			@Override
+			public int read() {
+				throw new AssertionError("disk on fire");
+			}
+		};
+		final ExecutorService pool = Executors.newSingleThreadExecutor();
+		try (WhitespaceInterpreter.BatchExecutor executor = new WhitespaceInterpreter.BatchExecutor(pool, 1)) {
+			final List<WhitespaceInterpreter.BatchResult> results = executor.run(echo,
+					Arrays.asList(broken, new ByteArrayInputStream("x".getBytes())));
+			assertEquals(AssertionError.class, results.get(0).getFailure().getClass());
+			assertEquals("x", results.get(1).getOutput());
+
+			// label 1; jump 1, stopped by the batch's options
+			final List<WhitespaceInterpreter.BatchResult> limited = executor.run(
+					WhitespaceInterpreter.compile("\n  \t\n\n \n\t\n"), Arrays.asList(null, null),
+					WhitespaceInterpreter.ExecutionOptions.DEFAULT.withMaxInstructions(1000));
+			for (WhitespaceInterpreter.BatchResult result : limited) {
+				assertEquals(WhitespaceInterpreter.ExecutionLimitException.class, result.getFailure().getClass());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
 	@Test
 	public void testUnknownInstruction() {
 		OutputStream stream = new ByteArrayOutputStream();